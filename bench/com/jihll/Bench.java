@@ -0,0 +1,175 @@
+package com.jihll;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+// Microbenchmarks for each stage of the pipeline: Lexer.next over the whole
+// source, Parser.parse (which lexes as it goes, so it includes the first),
+// Compiler.compile and VM.interpret, run separately over every
+// workload in bench/workloads, plus the same workload run on the AST engine (the
+// ".ast" benchmarks, comparable to ".run"). Each (workload, stage) pair is warmed up, then
+// timed over several fixed-length iterations; the report gives the mean time
+// per operation with its spread across iterations, and bytes allocated per
+// operation (the same figure as JMH's gc.alloc.rate.norm under -prof gc).
+// "source.lex" and "source.parse" run the first two stages over all the
+// workloads pasted together until they make a script of SOURCE_LINES lines,
+// and also report how many MB of source they get through a second.
+//
+//   bench/run_bench.sh [--warmup N] [--iterations N] [--time MS] [filter]
+//
+// 'filter' keeps only benchmarks whose "workload.stage" name contains it.
+// The http_* workloads send their requests to HttpStub, started in this JVM.
+class Bench {
+    private static int warmups = 5;
+    private static int iterations = 5;
+    private static long iterationNanos = 500_000_000L;
+    private static volatile Object sink;
+    private static final int SOURCE_LINES = 300_000;
+
+    private interface Stage { Object run(); }
+
+    public static void main(String[] args) throws IOException {
+        String filter = "";
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--warmup")) warmups = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--iterations")) iterations = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--time")) iterationNanos = Long.parseLong(args[++i]) * 1_000_000L;
+            else filter = args[i];
+        }
+
+        Globals root = new Globals();
+        JihllLanguage.defineNatives(root);
+        // httpGetUnpooled is httpGet as it was before the shared client, for
+        // the http_* workloads to compare against.
+        VM.defineNative(root, "httpGetUnpooled", (a) -> {
+            try {
+                HttpRequest request = HttpRequest.newBuilder().uri(URI.create(a[0].toString())).build();
+                return HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString()).body();
+            } catch (Exception e) { return null; }
+        });
+
+        List<Path> workloads = new ArrayList<>();
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(Paths.get("bench/workloads"), "*.jihll")) {
+            for (Path path : dir) if (!path.getFileName().toString().equals("lib.jihll")) workloads.add(path);
+        }
+        workloads.sort(null);
+        HttpServer stub = null;
+        try {
+            stub = HttpStub.start();
+        } catch (IOException e) {
+            System.err.println("Skipping http_* workloads: no stand-in server on port " + HttpStub.PORT + " (" + e.getMessage() + ")");
+            workloads.removeIf(path -> path.getFileName().toString().startsWith("http_"));
+        }
+
+        try {
+            System.out.printf("%-24s %14s %12s %14s %12s %12s%n", "Benchmark", "ns/op", "+- stddev", "B/op", "MB/s", "source MB/s");
+            StringBuilder pasted = new StringBuilder();
+            int lines = 0;
+            while (lines < SOURCE_LINES && !workloads.isEmpty()) {
+                for (Path path : workloads) {
+                    String text = Files.readString(path);
+                    pasted.append(text).append('\n');
+                    lines += text.split("\n", -1).length;
+                }
+            }
+            String pastedSource = pasted.toString();
+            measure("source.lex", filter, pastedSource.length(), () -> lex(pastedSource));
+            measure("source.parse", filter, pastedSource.length(), () -> new Parser(new Lexer(pastedSource)).parse());
+
+            for (Path path : workloads) {
+                String name = path.getFileName().toString().replace(".jihll", "");
+                String source = Files.readString(path);
+                List<Stmt> statements = new Parser(new Lexer(source)).parse();
+                Chunk chunk = new Chunk();
+                new Compiler(chunk, root).compile(statements);
+
+                measure(name + ".lex", filter, () -> lex(source));
+                measure(name + ".parse", filter, () -> new Parser(new Lexer(source)).parse());
+                measure(name + ".compile", filter, () -> {
+                    Chunk fresh = new Chunk();
+                    new Compiler(fresh, root).compile(statements);
+                    return fresh;
+                });
+                measure(name + ".run", filter, () -> {
+                    VM vm = new VM(root.copy());
+                    vm.interpret(chunk);
+                    return vm;
+                });
+                // Imported modules are compiled for whichever engine is enabled.
+                TreeCompiler.enabled = true;
+                Node.Body tree = new TreeCompiler(root).compile(statements);
+                measure(name + ".ast", filter, () -> {
+                    Globals globals = root.copy();
+                    TreeCompiler.run(tree, globals);
+                    return globals;
+                });
+                TreeCompiler.enabled = false;
+            }
+        } finally {
+            // Its dispatcher thread would otherwise keep the JVM running.
+            if (stub != null) stub.stop(0);
+        }
+    }
+
+    // Pulls every token, as the parser would; returns how many there were.
+    private static Object lex(String source) {
+        Lexer lexer = new Lexer(source);
+        int tokens = 0;
+        while (lexer.next() != TokenType.EOF) tokens++;
+        return tokens;
+    }
+
+    private static void measure(String name, String filter, Stage stage) { measure(name, filter, 0, stage); }
+
+    // sourceChars, if not 0, is how much source one operation reads.
+    private static void measure(String name, String filter, long sourceChars, Stage stage) {
+        if (!name.contains(filter)) return;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        for (int i = 0; i < warmups; i++) iteration(stage);
+        double[] nanosPerOp = new double[iterations];
+        long totalOps = 0, totalNanos = 0, totalBytes = 0;
+        for (int i = 0; i < iterations; i++) {
+            long bytes = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            long ops = iteration(stage);
+            long elapsed = System.nanoTime() - start;
+            totalBytes += threads.getThreadAllocatedBytes(thread) - bytes;
+            totalOps += ops;
+            totalNanos += elapsed;
+            nanosPerOp[i] = (double) elapsed / ops;
+        }
+
+        double mean = (double) totalNanos / totalOps;
+        double variance = 0;
+        for (double sample : nanosPerOp) variance += (sample - mean) * (sample - mean);
+        double stddev = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0;
+        double bytesPerOp = (double) totalBytes / totalOps;
+        double mbPerSecond = totalBytes / (totalNanos / 1e9) / (1024 * 1024);
+        String sourceRate = sourceChars == 0 ? "" : String.format("%.1f", sourceChars / (mean / 1e9) / (1024 * 1024));
+        System.out.printf("%-24s %14.1f %12.1f %14.1f %12.1f %12s%n", name, mean, stddev, bytesPerOp, mbPerSecond, sourceRate);
+    }
+
+    // Runs the stage repeatedly for one iteration's worth of time; returns the op count.
+    private static long iteration(Stage stage) {
+        long deadline = System.nanoTime() + iterationNanos;
+        long ops = 0;
+        do {
+            sink = stage.run();
+            ops++;
+        } while (System.nanoTime() < deadline);
+        return ops;
+    }
+}
@@ -0,0 +1,66 @@
+package com.jihll;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+// Local stand-in server for the HTTP natives, so tests and benchmarks never
+// touch the network. It listens on 127.0.0.1:PORT (-Djihll.httpStub.port,
+// default 18765) and answers
+//   /hello         "hello"
+//   /port          the client's port, which stays the same while a kept-alive
+//                  connection is reused
+//   /slow?ms=N     "slow", after N ms
+// Run as a launcher it serves while running a script in the same JVM:
+//   java -cp bin com.jihll.HttpStub tests/test_http.jihll
+class HttpStub {
+    static final int PORT = Integer.getInteger("jihll.httpStub.port", 18765);
+
+    public static void main(String[] args) throws IOException {
+        HttpServer server = start();
+        try {
+            JihllLanguage.main(args);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    static HttpServer start() throws IOException {
+        // Without TCP_NODELAY each small reply waits out the client's delayed
+        // ACK, about 40 ms, which would swamp every measurement.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT), 512);
+        server.createContext("/hello", exchange -> reply(exchange, "hello"));
+        server.createContext("/port", exchange -> reply(exchange, String.valueOf(exchange.getRemoteAddress().getPort())));
+        server.createContext("/slow", exchange -> {
+            String query = exchange.getRequestURI().getQuery();
+            try {
+                Thread.sleep(query != null && query.startsWith("ms=") ? Long.parseLong(query.substring(3)) : 100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            reply(exchange, "slow");
+        });
+        // Slow requests each hold a thread, so the pool grows with them.
+        server.setExecutor(Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "http-stub");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        return server;
+    }
+
+    private static void reply(HttpExchange exchange, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+#!/bin/bash
+
+# Builds the interpreter together with the benchmark harness and runs it.
+# Arguments are passed through, e.g.: bench/run_bench.sh --time 200 fib
+ROOT_DIR="$(cd "$(dirname "$0")/.." && pwd)"
+cd "$ROOT_DIR"
+
+JAVAC_BIN="${JAVA_HOME:+$JAVA_HOME/bin/}javac"
+JAVA_BIN="${JAVA_HOME:+$JAVA_HOME/bin/}java"
+
+echo "Compiling JIHLL + benchmarks..."
+"$JAVAC_BIN" -d "$ROOT_DIR/bench/bin" "$ROOT_DIR"/src/com/jihll/*.java "$ROOT_DIR"/bench/com/jihll/*.java
+
+if [ $? -ne 0 ]; then
+    echo "Compilation Failed!"
+    exit 1
+fi
+
+# A fixed heap keeps GC sizing from drifting between runs.
+"$JAVA_BIN" -Xms1g -Xmx1g -cp "$ROOT_DIR/bench/bin" com.jihll.Bench "$@"
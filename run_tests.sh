@@ -31,7 +31,7 @@ if [ -z "$JAVAC_BIN" ] || [ -z "$JAVA_BIN" ]; then
 fi
 
 echo "Compiling JIHLL..."
-"$JAVAC_BIN" -d "$ROOT_DIR/bin" "$ROOT_DIR"/src/com/jihll/*.java
+"$JAVAC_BIN" -d "$ROOT_DIR/bin" "$ROOT_DIR"/src/com/jihll/*.java "$ROOT_DIR"/bench/com/jihll/HttpStub.java
 
 if [ $? -ne 0 ]; then
     echo "Compilation Failed!"
@@ -42,8 +42,8 @@ echo "--------------------------------------"
 echo "Running Verification Suite"
 echo "--------------------------------------"
 
-# Define the Java Command
-JAVA_CMD="$JAVA_BIN -cp $ROOT_DIR/bin com.jihll.JihllLanguage"
+# Define the Java Command (extra arguments, e.g. --engine ast, are passed through)
+JAVA_CMD="$JAVA_BIN -cp $ROOT_DIR/bin com.jihll.JihllLanguage $*"
 
 # Run each test
 $JAVA_CMD tests/test_core.jihll
@@ -57,6 +57,11 @@ echo ""
 $JAVA_CMD tests/test_concurrency.jihll
 echo ""
 $JAVA_CMD tests/test_modules.jihll
+echo ""
+$JAVA_CMD tests/test_errors.jihll
+echo ""
+# Served by the in-process stand-in server, which then runs the script.
+$JAVA_BIN -cp $ROOT_DIR/bin com.jihll.HttpStub $* tests/test_http.jihll
 
 echo "--------------------------------------"
 echo "Cleaning up..."
@@ -1,18 +1,108 @@
 package com.jihll;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 class Chunk {
-    final List<Integer> code = new ArrayList<>();
-    final List<Object> constants = new ArrayList<>();
+    // Every opcode and operand is one 32-bit word, so constant indices,
+    // local slots and jump offsets are not limited to a byte.
+    int[] code = new int[256];
+    int count = 0;
+    Object[] constants = new Object[64];
+    int constantCount = 0;
+    // Literals are interned by value: Double.equals compares bits (so 0.0 and
+    // -0.0 stay distinct), and values of different types are never equal.
+    // Functions don't override equals, so each keeps its own slot.
+    private Map<Object, Integer> constantIndex = new HashMap<>();
+    InlineCache[] caches = new InlineCache[16];
+    int cacheCount = 0;
+    Handler[] handlers = new Handler[0];
+    // Line table, run-length encoded: lines[2i + 1] is the source line of the
+    // code from pc lines[2i] up to the next entry's pc. See lineAt.
+    int[] lines = new int[16];
+    int lineCount = 0;
+    // Script file name for reports; not part of the cached chunk.
+    String name;
+    // Guard failures per quickened site (see VM.quicken), allocated on the first one.
+    byte[] dequickens;
 
-    void write(int byteCode) {
-        code.add(byteCode);
+    // Exception table entry: errors raised by code in [start, end) resume at
+    // 'target' with the stack cut to 'depth' slots above the frame pointer.
+    static final class Handler {
+        final int start;
+        final int end;
+        final int target;
+        final int depth;
+        Handler(int start, int end, int target, int depth) {
+            this.start = start; this.end = end; this.target = target; this.depth = depth;
+        }
+    }
+
+    void write(int word) {
+        if (count == code.length) code = Arrays.copyOf(code, count * 2);
+        code[count++] = word;
+    }
+
+    void patch(int offset, int word) { code[offset] = word; }
+
+    // Code from 'pc' on comes from 'line', until the next call. Entries must
+    // be added in pc order; line 0 means unknown.
+    void addLine(int pc, int line) {
+        if (lineCount > 0 && lines[2 * lineCount - 2] == pc) lineCount--; // nothing emitted under the last entry
+        if (lineCount > 0 && lines[2 * lineCount - 1] == line) return;
+        if (2 * lineCount == lines.length) lines = Arrays.copyOf(lines, Math.max(16, lines.length * 2));
+        lines[2 * lineCount] = pc;
+        lines[2 * lineCount + 1] = line;
+        lineCount++;
+    }
+
+    // Source line of the instruction at pc, or 0 if unknown.
+    int lineAt(int pc) {
+        int low = 0, high = lineCount - 1, line = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (lines[2 * mid] <= pc) { line = lines[2 * mid + 1]; low = mid + 1; }
+            else high = mid - 1;
+        }
+        return line;
     }
 
     int addConstant(Object value) {
-        constants.add(value);
-        return constants.size() - 1;
+        Integer existing = constantIndex.get(value);
+        if (existing != null) return existing;
+        if (constantCount == constants.length) constants = Arrays.copyOf(constants, constantCount * 2);
+        constants[constantCount++] = value;
+        constantIndex.put(value, constantCount - 1);
+        return constantCount - 1;
+    }
+
+    int addCache() {
+        if (cacheCount == caches.length) caches = Arrays.copyOf(caches, cacheCount * 2);
+        caches[cacheCount++] = new InlineCache();
+        return cacheCount - 1;
+    }
+
+    // Inner try blocks are added before the blocks enclosing them, so the
+    // first match is the innermost handler.
+    void addHandler(int start, int end, int target, int depth) {
+        handlers = Arrays.copyOf(handlers, handlers.length + 1);
+        handlers[handlers.length - 1] = new Handler(start, end, target, depth);
+    }
+
+    Handler findHandler(int pc) {
+        for (Handler handler : handlers) {
+            if (pc >= handler.start && pc < handler.end) return handler;
+        }
+        return null;
+    }
+
+    // Trims the instruction stream, constant pool and caches once compilation is done.
+    void finish() {
+        if (code.length != count) code = Arrays.copyOf(code, count);
+        if (constants.length != constantCount) constants = Arrays.copyOf(constants, constantCount);
+        if (caches.length != cacheCount) caches = Arrays.copyOf(caches, cacheCount);
+        if (lines.length != 2 * lineCount) lines = Arrays.copyOf(lines, 2 * lineCount);
+        constantIndex = null;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,234 @@
+package com.jihll;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Compiled chunks cached next to their source as <script>.jihllc, so a rerun
+// skips the Lexer, Parser and Compiler. A cache is used only if its format
+// version, peephole setting and SHA-256 of the source all match; otherwise the
+// script is recompiled and the file rewritten. Global slots are assigned per
+// VM, so the file names the globals it uses and they are re-resolved on load.
+// Disable with --no-cache or -Djihll.cache=false.
+class ChunkFile {
+    static boolean enabled = !"false".equals(System.getProperty("jihll.cache"));
+
+    private static final int MAGIC = 0x4A484C43; // "JHLC"
+    // Bump whenever Op numbering or the layout below changes, or the same
+    // source would now compile differently (3: string escapes are decoded in
+    // one pass).
+    private static final int VERSION = 3;
+
+    private static final byte NULL = 0, NUMBER = 1, STRING = 2, TRUE = 3, FALSE = 4, FUNCTION = 5;
+
+    static Path cachePath(Path source) { return source.resolveSibling(source.getFileName() + "c"); }
+
+    // Compiled chunk for a script, from its cache file when that is still valid.
+    static Chunk load(Path source, Globals globals) throws IOException {
+        byte[] text = Files.readAllBytes(source);
+        byte[] hash = hash(text);
+        Path cache = cachePath(source);
+        Chunk chunk = enabled ? read(cache, hash, globals) : null;
+        if (chunk == null) {
+            chunk = compile(new String(text, StandardCharsets.UTF_8), globals);
+            if (enabled) {
+                try { write(cache, chunk, hash, globals); } catch (IOException e) { /* read-only location: run uncached */ }
+            }
+        }
+        chunk.name = source.getFileName().toString();
+        return chunk;
+    }
+
+    // Writes <file>.jihllc for every .jihll file under dir; returns how many were compiled.
+    static int precompile(Path dir) throws IOException {
+        List<Path> sources;
+        try (Stream<Path> files = Files.walk(dir)) {
+            sources = files.filter(p -> p.toString().endsWith(".jihll") && Files.isRegularFile(p)).collect(Collectors.toList());
+        }
+        for (Path source : sources) {
+            byte[] text = Files.readAllBytes(source);
+            Globals globals = new Globals();
+            write(cachePath(source), compile(new String(text, StandardCharsets.UTF_8), globals), hash(text), globals);
+        }
+        return sources.size();
+    }
+
+    static Chunk compile(String source, Globals globals) {
+        Chunk chunk = new Chunk();
+        new Compiler(chunk, globals).compile(new Parser(new Lexer(source)).parse());
+        return chunk;
+    }
+
+    static void write(Path cache, Chunk chunk, byte[] hash, Globals globals) throws IOException {
+        // Global operands are written as indices into a table of names, and
+        // quickened instructions as their generic forms.
+        int[] code = Arrays.copyOf(chunk.code, chunk.count);
+        Map<Integer, Integer> globalIndex = new HashMap<>();
+        List<String> names = new ArrayList<>();
+        for (int pc = 0; pc < code.length; pc += 1 + Op.operands(code[pc])) {
+            code[pc] = Op.generic(code[pc]);
+            if (!isGlobal(code[pc])) continue;
+            int slot = code[pc + 1];
+            Integer index = globalIndex.get(slot);
+            if (index == null) {
+                index = names.size();
+                globalIndex.put(slot, index);
+                names.add(globals.name(slot));
+            }
+            code[pc + 1] = index;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(code.length * 4 + 256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeBoolean(Peephole.enabled);
+        out.write(hash);
+        out.writeInt(names.size());
+        for (String name : names) writeString(out, name);
+        out.writeInt(chunk.constantCount);
+        for (int i = 0; i < chunk.constantCount; i++) {
+            Object value = chunk.constants[i];
+            if (value == null) out.writeByte(NULL);
+            else if (value instanceof Double) { out.writeByte(NUMBER); out.writeDouble((Double) value); }
+            else if (value instanceof String) { out.writeByte(STRING); writeString(out, (String) value); }
+            else if (value instanceof Boolean) out.writeByte((Boolean) value ? TRUE : FALSE);
+            else if (value instanceof JihllFunction) {
+                JihllFunction fn = (JihllFunction) value;
+                out.writeByte(FUNCTION); writeString(out, fn.name); out.writeInt(fn.arity); out.writeInt(fn.address);
+            } else throw new IOException("Cannot cache constant " + value);
+        }
+        out.writeInt(chunk.cacheCount);
+        out.writeInt(chunk.handlers.length);
+        for (Chunk.Handler handler : chunk.handlers) {
+            out.writeInt(handler.start); out.writeInt(handler.end); out.writeInt(handler.target); out.writeInt(handler.depth);
+        }
+        out.writeInt(chunk.lineCount);
+        for (int i = 0; i < 2 * chunk.lineCount; i++) out.writeInt(chunk.lines[i]);
+        out.writeInt(code.length);
+        for (int word : code) out.writeInt(word);
+        out.flush();
+
+        // Written aside and moved into place so a concurrent run never maps a partial file.
+        Path temp = Files.createTempFile(cache.toAbsolutePath().getParent(), cache.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temp, bytes.toByteArray());
+            Files.move(temp, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // The cached chunk, or null if the file is missing, stale or unreadable.
+    static Chunk read(Path cache, byte[] hash, Globals globals) {
+        if (!Files.isRegularFile(cache)) return null;
+        ByteBuffer in = null;
+        try (FileChannel channel = FileChannel.open(cache, StandardOpenOption.READ)) {
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) return null;
+            if ((in.get() != 0) != Peephole.enabled) return null;
+            byte[] stored = new byte[hash.length];
+            in.get(stored);
+            if (!Arrays.equals(stored, hash)) return null;
+
+            int[] slots = new int[count(in, 4)];
+            for (int i = 0; i < slots.length; i++) slots[i] = globals.slot(readString(in));
+
+            Chunk chunk = new Chunk();
+            int constantCount = count(in, 1);
+            Object[] constants = new Object[constantCount];
+            for (int i = 0; i < constantCount; i++) {
+                byte tag = in.get();
+                switch (tag) {
+                    case NULL: break;
+                    case NUMBER: constants[i] = in.getDouble(); break;
+                    case STRING: constants[i] = readString(in); break;
+                    case TRUE: constants[i] = true; break;
+                    case FALSE: constants[i] = false; break;
+                    case FUNCTION: constants[i] = new JihllFunction(readString(in), in.getInt(), in.getInt(), chunk); break;
+                    default: return null;
+                }
+            }
+            int cacheCount = count(in, 4);
+            InlineCache[] caches = new InlineCache[cacheCount];
+            for (int i = 0; i < cacheCount; i++) caches[i] = new InlineCache();
+            Chunk.Handler[] handlers = new Chunk.Handler[count(in, 16)];
+            for (int i = 0; i < handlers.length; i++) handlers[i] = new Chunk.Handler(in.getInt(), in.getInt(), in.getInt(), in.getInt());
+            int lineCount = count(in, 8);
+            int[] lines = new int[2 * lineCount];
+            for (int i = 0; i < lines.length; i++) lines[i] = in.getInt();
+            int[] code = new int[count(in, 4)];
+            in.asIntBuffer().get(code);
+
+            for (int pc = 0; pc < code.length; pc += 1 + Op.operands(code[pc])) {
+                if (isGlobal(code[pc])) code[pc + 1] = slots[code[pc + 1]];
+            }
+            chunk.code = code;
+            chunk.count = code.length;
+            chunk.constants = constants;
+            chunk.constantCount = constantCount;
+            chunk.caches = caches;
+            chunk.cacheCount = cacheCount;
+            chunk.handlers = handlers;
+            chunk.lines = lines;
+            chunk.lineCount = lineCount;
+            chunk.finish();
+            return chunk;
+        } catch (IOException | RuntimeException e) {
+            // Truncated or corrupt past the hash (a bad count, tag or operand):
+            // recompile rather than fail the run.
+            return null;
+        } finally {
+            // Everything is copied out, so the mapping can go now; left to the
+            // GC, it would keep a --watch rewrite from replacing the file on Windows.
+            JihllFile.unmap(in);
+        }
+    }
+
+    private static boolean isGlobal(int op) {
+        return op == Op.DEFINE_GLOBAL || op == Op.GET_GLOBAL || op == Op.SET_GLOBAL || op == Op.SET_GLOBAL_POP;
+    }
+
+    static byte[] hash(byte[] source) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(source);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // A count read from the file, checked against what is left of it at
+    // bytesEach per item, so a corrupt one can't ask for a huge array. (Each
+    // inline cache is named by an operand word of the code that follows.)
+    private static int count(ByteBuffer in, int bytesEach) {
+        int count = in.getInt();
+        if (count < 0 || count > in.remaining() / bytesEach) throw new BufferUnderflowException();
+        return count;
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[count(in, 1)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -2,11 +2,25 @@ package com.jihll;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 
 class Compiler {
     public final Chunk chunk;
+    private final Globals globals;
     private final List<Local> locals = new ArrayList<>();
     private int scopeDepth = 0;
+    // Source line of the statement being compiled, for the chunk's line table.
+    private int line;
+
+    // A try block being compiled. Function bodies are emitted inline, so they
+    // split the protected range into segments that skip the body.
+    private static class TryBlock {
+        final List<int[]> segments = new ArrayList<>();
+        int start;
+        TryBlock(int start) { this.start = start; }
+        void close(int end) { if (end > start) segments.add(new int[] { start, end }); }
+    }
+    private final List<TryBlock> tryBlocks = new ArrayList<>();
 
     private static class Local {
         String name;
@@ -14,12 +28,14 @@ class Compiler {
         Local(String name, int depth) { this.name = name; this.depth = depth; }
     }
 
-    Compiler(Chunk chunk) { this.chunk = chunk; }
+    Compiler(Chunk chunk, Globals globals) { this.chunk = chunk; this.globals = globals; }
 
     void compile(List<Stmt> statements) {
         for (Stmt statement : statements) compile(statement);
         chunk.write(Op.CONSTANT); chunk.write(chunk.addConstant(null));
         chunk.write(Op.RETURN); 
+        chunk.finish();
+        if (Peephole.enabled) Peephole.optimize(chunk);
     }
 
     private int resolveLocal(String name) {
@@ -44,6 +60,26 @@ class Compiler {
     }
     
     private void compile(Stmt stmt) {
+        int enclosing = enter(stmt);
+        statement(stmt);
+        leave(enclosing);
+    }
+
+    // Code emitted from here on belongs to the statement's line; returns the
+    // line to restore once it is done.
+    private int enter(Stmt stmt) {
+        int enclosing = line;
+        if (stmt.line != 0) line = stmt.line;
+        chunk.addLine(chunk.count, line);
+        return enclosing;
+    }
+
+    private void leave(int enclosing) {
+        line = enclosing;
+        chunk.addLine(chunk.count, line);
+    }
+
+    private void statement(Stmt stmt) {
         if (stmt instanceof Stmt.Print) {
             compile(((Stmt.Print) stmt).expression);
             chunk.write(Op.PRINT);
@@ -59,43 +95,27 @@ class Compiler {
             
             for (Stmt.Function method : classStmt.methods) {
                 int methodIdx = chunk.addConstant(method.name.lexeme);
-                Stmt.Function func = method;
-                chunk.write(Op.JUMP); chunk.write(0xff); int jumpIdx = chunk.code.size() - 1;
-                int startAddress = chunk.code.size();
-                
-                beginScope();
-                locals.clear();
-                addLocal("this");
-                
-                for (int i = 0; i < func.params.size(); i++) {
-                     addLocal(func.params.get(i).lexeme);
-                }
-                
-                for (Stmt s : func.body) compile(s);
-                chunk.write(Op.CONSTANT); chunk.write(chunk.addConstant(null)); chunk.write(Op.RETURN);
-
-                int endAddress = chunk.code.size();
-                chunk.code.set(jumpIdx, endAddress - jumpIdx - 1);
-                
-                JihllFunction methodFn = new JihllFunction(method.name.lexeme, method.params.size(), startAddress, this.chunk);
+                JihllFunction methodFn = function(method, true);
                 chunk.write(Op.CONSTANT); chunk.write(chunk.addConstant(methodFn));
                 chunk.write(Op.METHOD);
                 chunk.write(methodIdx);
             }
+            chunk.write(Op.SET_GLOBAL); chunk.write(globals.slot(classStmt.name.lexeme));
             chunk.write(Op.POP); 
 
         } else if (stmt instanceof Stmt.Try) {
             Stmt.Try tryStmt = (Stmt.Try) stmt;
-            chunk.write(Op.TRY_ENTER);
-            chunk.write(0xff); int catchJump = chunk.code.size() - 1;
-            
+            TryBlock block = new TryBlock(chunk.count);
+            tryBlocks.add(block);
             compile(tryStmt.tryBlock);
-            chunk.write(Op.TRY_EXIT); 
+            tryBlocks.remove(tryBlocks.size() - 1);
+            block.close(chunk.count);
+
             chunk.write(Op.JUMP);
-            chunk.write(0xff); int endJump = chunk.code.size() - 1;
+            chunk.write(0xff); int endJump = chunk.count - 1;
             
-            int catchAddr = chunk.code.size();
-            chunk.code.set(catchJump, catchAddr - catchJump - 1);
+            int catchAddr = chunk.count;
+            for (int[] segment : block.segments) chunk.addHandler(segment[0], segment[1], catchAddr, locals.size());
             
             beginScope();
             addLocal(tryStmt.errorVar.lexeme); 
@@ -103,7 +123,7 @@ class Compiler {
             compile(tryStmt.catchBlock);
             endScope();
             
-            chunk.code.set(endJump, chunk.code.size() - 1 - endJump);
+            chunk.patch(endJump, chunk.count - 1 - endJump);
 
         } else if (stmt instanceof Stmt.Import) {
             Stmt.Import imp = (Stmt.Import) stmt;
@@ -111,72 +131,29 @@ class Compiler {
             chunk.write(Op.IMPORT);
         } else if (stmt instanceof Stmt.Function) {
             Stmt.Function func = (Stmt.Function) stmt;
-            chunk.write(Op.JUMP);
-            chunk.write(0xff); 
-            int jumpIdx = chunk.code.size() - 1;
-            int startAddress = chunk.code.size();
-            
-            List<Local> savedLocals = new ArrayList<>(locals);
-            locals.clear();
-            
-            for (int i = 0; i < func.params.size(); i++) {
-                addLocal(func.params.get(i).lexeme); 
-            }
-            
-            boolean hasReturn = false;
-            for (int i = 0; i < func.body.size(); i++) {
-                Stmt s = func.body.get(i);
-                if (i == func.body.size() - 1) {
-                    if (s instanceof Stmt.Expression) {
-                        compile(((Stmt.Expression)s).expression);
-                        chunk.write(Op.RETURN);
-                        hasReturn = true;
-                    } else if (s instanceof Stmt.If) {
-                        compileIfExpression((Stmt.If) s);
-                        chunk.write(Op.RETURN);
-                        hasReturn = true;
-                    } else {
-                        compile(s);
-                    }
-                } else {
-                    compile(s);
-                }
-            }
-            
-            if (!hasReturn) {
-                chunk.write(Op.CONSTANT); chunk.write(chunk.addConstant(null)); chunk.write(Op.RETURN);
-            }
-            
-            locals.clear();
-            locals.addAll(savedLocals);
-
-            int endAddress = chunk.code.size();
-            chunk.code.set(jumpIdx, endAddress - jumpIdx - 1);
-
-            JihllFunction fnObj = new JihllFunction(func.name.lexeme, func.params.size(), startAddress, this.chunk);
+            JihllFunction fnObj = function(func, false);
             int constIdx = chunk.addConstant(fnObj);
             chunk.write(Op.CONSTANT); chunk.write(constIdx);
             
-            int nameIdx = chunk.addConstant(func.name.lexeme);
-            chunk.write(Op.SET_GLOBAL); chunk.write(nameIdx); chunk.write(Op.POP); 
+            chunk.write(Op.SET_GLOBAL); chunk.write(globals.slot(func.name.lexeme)); chunk.write(Op.POP); 
 
         } else if (stmt instanceof Stmt.If) {
             Stmt.If ifStmt = (Stmt.If) stmt;
             compile(ifStmt.condition);
-            chunk.write(Op.JUMP_IF_FALSE); chunk.write(0xff); int elseJump = chunk.code.size() - 1;
+            chunk.write(Op.JUMP_IF_FALSE); chunk.write(0xff); int elseJump = chunk.count - 1;
             compile(ifStmt.thenBranch);
-            chunk.write(Op.JUMP); chunk.write(0xff); int endJump = chunk.code.size() - 1;
-            chunk.code.set(elseJump, chunk.code.size() - 1 - elseJump);
+            chunk.write(Op.JUMP); chunk.write(0xff); int endJump = chunk.count - 1;
+            chunk.patch(elseJump, chunk.count - 1 - elseJump);
             if (ifStmt.elseBranch != null) compile(ifStmt.elseBranch);
-            chunk.code.set(endJump, chunk.code.size() - 1 - endJump);
+            chunk.patch(endJump, chunk.count - 1 - endJump);
         } else if (stmt instanceof Stmt.While) {
             Stmt.While whileStmt = (Stmt.While) stmt;
-            int loopStart = chunk.code.size();
+            int loopStart = chunk.count;
             compile(whileStmt.condition);
-            chunk.write(Op.JUMP_IF_FALSE); chunk.write(0xff); int exitJump = chunk.code.size() - 1;
+            chunk.write(Op.JUMP_IF_FALSE); chunk.write(0xff); int exitJump = chunk.count - 1;
             compile(whileStmt.body);
-            chunk.write(Op.JUMP); chunk.write(loopStart - (chunk.code.size() + 1));
-            chunk.code.set(exitJump, chunk.code.size() - 1 - exitJump);
+            chunk.write(Op.JUMP); chunk.write(loopStart - (chunk.count + 1));
+            chunk.patch(exitJump, chunk.count - 1 - exitJump);
         } else if (stmt instanceof Stmt.Return) {
             Stmt.Return ret = (Stmt.Return) stmt;
             if (ret.value != null) compile(ret.value);
@@ -191,18 +168,74 @@ class Compiler {
         }
     }
 
+    // Emits a function body inline, behind a jump that skips it. Methods get
+    // 'this' in slot 0; parameters follow. The last expression is the result.
+    private JihllFunction function(Stmt.Function func, boolean method) {
+        chunk.write(Op.JUMP);
+        chunk.write(0xff); 
+        int jumpIdx = chunk.count - 1;
+        int startAddress = chunk.count;
+        
+        List<Local> savedLocals = new ArrayList<>(locals);
+        locals.clear();
+        List<TryBlock> savedTries = new ArrayList<>(tryBlocks);
+        for (TryBlock block : savedTries) block.close(startAddress);
+        tryBlocks.clear();
+        
+        if (method) addLocal("this");
+        for (int i = 0; i < func.params.size(); i++) {
+            addLocal(func.params.get(i).lexeme); 
+        }
+        
+        boolean hasReturn = false;
+        for (int i = 0; i < func.body.size(); i++) {
+            Stmt s = func.body.get(i);
+            int enclosing = enter(s);
+            if (i == func.body.size() - 1) {
+                if (s instanceof Stmt.Expression) {
+                    compile(((Stmt.Expression)s).expression);
+                    chunk.write(Op.RETURN);
+                    hasReturn = true;
+                } else if (s instanceof Stmt.If) {
+                    compileIfExpression((Stmt.If) s);
+                    chunk.write(Op.RETURN);
+                    hasReturn = true;
+                } else {
+                    compile(s);
+                }
+            } else {
+                compile(s);
+            }
+            leave(enclosing);
+        }
+        
+        if (!hasReturn) {
+            chunk.write(Op.CONSTANT); chunk.write(chunk.addConstant(null)); chunk.write(Op.RETURN);
+        }
+        
+        locals.clear();
+        locals.addAll(savedLocals);
+
+        int endAddress = chunk.count;
+        chunk.patch(jumpIdx, endAddress - jumpIdx - 1);
+        for (TryBlock block : savedTries) block.start = endAddress;
+        tryBlocks.addAll(savedTries);
+
+        return new JihllFunction(func.name.lexeme, func.params.size(), startAddress, this.chunk);
+    }
+
     private void compileIfExpression(Stmt.If ifStmt) {
         compile(ifStmt.condition);
-        chunk.write(Op.JUMP_IF_FALSE); chunk.write(0xff); int elseJump = chunk.code.size() - 1;
+        chunk.write(Op.JUMP_IF_FALSE); chunk.write(0xff); int elseJump = chunk.count - 1;
         compileBlockValue((Stmt.Block) ifStmt.thenBranch);
-        chunk.write(Op.JUMP); chunk.write(0xff); int endJump = chunk.code.size() - 1;
-        chunk.code.set(elseJump, chunk.code.size() - 1 - elseJump);
+        chunk.write(Op.JUMP); chunk.write(0xff); int endJump = chunk.count - 1;
+        chunk.patch(elseJump, chunk.count - 1 - elseJump);
         if (ifStmt.elseBranch != null) {
             compileBlockValue((Stmt.Block) ifStmt.elseBranch);
         } else {
             chunk.write(Op.CONSTANT); chunk.write(chunk.addConstant(null));
         }
-        chunk.code.set(endJump, chunk.code.size() - 1 - endJump);
+        chunk.patch(endJump, chunk.count - 1 - endJump);
     }
 
     private void compileBlockValue(Stmt.Block block) {
@@ -213,6 +246,7 @@ class Compiler {
         }
         for (int i = 0; i < stmts.size(); i++) {
             Stmt s = stmts.get(i);
+            int enclosing = enter(s);
             if (i == stmts.size() - 1) {
                 if (s instanceof Stmt.Expression) {
                     compile(((Stmt.Expression) s).expression);
@@ -225,6 +259,7 @@ class Compiler {
             } else {
                 compile(s);
             }
+            leave(enclosing);
         }
     }
 
@@ -238,9 +273,8 @@ class Compiler {
                 chunk.write(Op.SET_LOCAL);
                 chunk.write(arg);
             } else {
-                int nameIdx = chunk.addConstant(assign.name.lexeme);
                 chunk.write(Op.SET_GLOBAL);
-                chunk.write(nameIdx);
+                chunk.write(globals.slot(assign.name.lexeme));
             }
         } else if (expr instanceof Expr.Variable) {
             String name = ((Expr.Variable) expr).name.lexeme;
@@ -249,9 +283,8 @@ class Compiler {
                 chunk.write(Op.GET_LOCAL);
                 chunk.write(arg);
             } else {
-                int nameIdx = chunk.addConstant(name);
                 chunk.write(Op.GET_GLOBAL);
-                chunk.write(nameIdx);
+                chunk.write(globals.slot(name));
             }
         } else if (expr instanceof Expr.Set) {
             Expr.Set set = (Expr.Set) expr;
@@ -260,12 +293,14 @@ class Compiler {
             int nameIdx = chunk.addConstant(set.name.lexeme);
             chunk.write(Op.SET_PROPERTY);
             chunk.write(nameIdx);
+            chunk.write(chunk.addCache());
         } else if (expr instanceof Expr.Get) {
             Expr.Get get = (Expr.Get) expr;
             compile(get.object);
             int nameIdx = chunk.addConstant(get.name.lexeme);
             chunk.write(Op.GET_PROPERTY);
             chunk.write(nameIdx);
+            chunk.write(chunk.addCache());
         } else if (expr instanceof Expr.Spawn) {
             Expr inner = ((Expr.Spawn)expr).expression;
             if (inner instanceof Expr.Call) {
@@ -275,6 +310,15 @@ class Compiler {
                 chunk.write(Op.SPAWN);
                 chunk.write(call.arguments.size());
             } else { throw new RuntimeException("Spawn must call a function."); }
+        } else if (expr instanceof Expr.Call && ((Expr.Call) expr).callee instanceof Expr.Get) {
+            Expr.Call call = (Expr.Call) expr;
+            Expr.Get get = (Expr.Get) call.callee;
+            compile(get.object);
+            for (Expr arg : call.arguments) compile(arg);
+            chunk.write(Op.INVOKE);
+            chunk.write(chunk.addConstant(get.name.lexeme));
+            chunk.write(call.arguments.size());
+            chunk.write(chunk.addCache());
         } else if (expr instanceof Expr.Call) {
             Expr.Call call = (Expr.Call) expr;
             compile(call.callee);
@@ -298,6 +342,8 @@ class Compiler {
             }
             chunk.write(Op.BUILD_MAP); chunk.write(map.keys.size());
         } else if (expr instanceof Expr.Binary) {
+            Expr folded = fold(expr);
+            if (folded != expr) { compile(folded); return; }
             Expr.Binary binary = (Expr.Binary) expr;
             compile(binary.left); compile(binary.right);
             switch (binary.operator.type) {
@@ -314,4 +360,45 @@ class Compiler {
             }
         }
     }
-}
\ No newline at end of file
+
+    // Evaluates binary expressions whose operands are literals (after folding
+    // them in turn) exactly as the VM would. Combinations the VM rejects at
+    // runtime, like true - 1, are left alone so the error still happens then.
+    static Expr fold(Expr expr) {
+        if (!(expr instanceof Expr.Binary)) return expr;
+        Expr.Binary binary = (Expr.Binary) expr;
+        Expr left = fold(binary.left);
+        Expr right = fold(binary.right);
+        if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+            Object value = evaluate(binary.operator.type, ((Expr.Literal) left).value, ((Expr.Literal) right).value);
+            if (value != NOT_CONSTANT) return new Expr.Literal(value);
+        }
+        if (left == binary.left && right == binary.right) return binary;
+        return new Expr.Binary(left, binary.operator, right);
+    }
+
+    private static final Object NOT_CONSTANT = new Object();
+
+    private static Object evaluate(TokenType operator, Object a, Object b) {
+        switch (operator) {
+            case EQUAL_EQUAL: return Objects.equals(a, b);
+            case BANG_EQUAL: return !Objects.equals(a, b);
+            case PLUS:
+                if (a instanceof String || b instanceof String) return "" + a + b;
+                break;
+        }
+        if (!(a instanceof Double) || !(b instanceof Double)) return NOT_CONSTANT;
+        double x = (Double) a, y = (Double) b;
+        switch (operator) {
+            case PLUS: return x + y;
+            case MINUS: return x - y;
+            case STAR: return x * y;
+            case SLASH: return x / y;
+            case LESS: return x < y ? 1.0 : 0.0;
+            case GREATER: return x > y ? 1.0 : 0.0;
+            case LESS_EQUAL: return x <= y ? 1.0 : 0.0;
+            case GREATER_EQUAL: return x >= y ? 1.0 : 0.0;
+            default: return NOT_CONSTANT;
+        }
+    }
+}
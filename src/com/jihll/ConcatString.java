@@ -0,0 +1,122 @@
+package com.jihll;
+
+import java.util.Objects;
+
+// A string built by '+', once it is long enough for copying to matter.
+// Values from a chain of appends (s = s + x in a loop) share one
+// StringBuilder, each remembering how much of it is theirs. Appending to the
+// value that ends where the builder ends extends the builder in place, so
+// building a string piece by piece is amortized O(1) per append; appending to
+// any other value copies its prefix into a fresh builder first. Numbers are
+// formatted straight into the builder.
+//
+// Script code sees an ordinary string: the String is made (and kept) when the
+// value is printed, compared, put in a list or map or passed to a native, so
+// collections only ever hold Strings and compare by text as before. Values
+// can reach other tasks through spawn, so the builder is only touched under
+// its own lock.
+final class ConcatString implements CharSequence {
+    // Shorter results are plain Strings: for them a copy is cheaper than a builder.
+    static final int MIN_LENGTH = 128;
+
+    private final StringBuilder builder;
+    private final int length;
+    private String flat;
+
+    private ConcatString(StringBuilder builder, int length) {
+        this.builder = builder;
+        this.length = length;
+    }
+
+    // a + b where either side is a string: the same text as "" + a + b.
+    static Object concat(Object a, Object b) {
+        if (a instanceof ConcatString) return ((ConcatString) a).append(b);
+        if (a instanceof String && b instanceof String) {
+            String left = (String) a, right = (String) b;
+            if (left.length() + right.length() < MIN_LENGTH) return left.concat(right);
+        }
+        StringBuilder builder = new StringBuilder();
+        append(builder, a);
+        append(builder, b);
+        return result(builder);
+    }
+
+    // a + b for a string a and a number b, without boxing or Double.toString.
+    static Object concat(Object a, double b) {
+        if (a instanceof ConcatString) return ((ConcatString) a).append(b);
+        StringBuilder builder = new StringBuilder();
+        append(builder, a);
+        builder.append(b);
+        return result(builder);
+    }
+
+    static boolean isString(Object value) { return value instanceof String || value instanceof ConcatString; }
+
+    // == on script values: strings compare by text whatever their representation.
+    static boolean equal(Object a, Object b) { return Objects.equals(flatten(a), flatten(b)); }
+
+    // The value as script code observes it: a ConcatString becomes its String.
+    static Object flatten(Object value) { return value instanceof ConcatString ? value.toString() : value; }
+
+    static void flatten(Object[] values) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] instanceof ConcatString) values[i] = values[i].toString();
+        }
+    }
+
+    private ConcatString append(Object value) {
+        if (value instanceof ConcatString) value = value.toString();
+        synchronized (builder) {
+            if (builder.length() == length) {
+                append(builder, value);
+                return new ConcatString(builder, builder.length());
+            }
+        }
+        StringBuilder copy = copy();
+        append(copy, value);
+        return new ConcatString(copy, copy.length());
+    }
+
+    private ConcatString append(double value) {
+        synchronized (builder) {
+            if (builder.length() == length) {
+                builder.append(value);
+                return new ConcatString(builder, builder.length());
+            }
+        }
+        StringBuilder copy = copy();
+        copy.append(value);
+        return new ConcatString(copy, copy.length());
+    }
+
+    // This value's text in a builder of its own, with room to keep growing.
+    private StringBuilder copy() {
+        StringBuilder copy = new StringBuilder(length * 2);
+        synchronized (builder) { copy.append(builder, 0, length); }
+        return copy;
+    }
+
+    private static void append(StringBuilder builder, Object value) {
+        if (value instanceof Double) builder.append((double) (Double) value);
+        else builder.append(value);
+    }
+
+    private static Object result(StringBuilder builder) {
+        return builder.length() < MIN_LENGTH ? builder.toString() : new ConcatString(builder, builder.length());
+    }
+
+    @Override public int length() { return length; }
+    @Override public char charAt(int index) { return toString().charAt(index); }
+    @Override public CharSequence subSequence(int start, int end) { return toString().subSequence(start, end); }
+
+    // Racing threads may each build the String; any of them is the same text.
+    @Override
+    public String toString() {
+        String s = flat;
+        if (s == null) {
+            synchronized (builder) { s = builder.substring(0, length); }
+            flat = s;
+        }
+        return s;
+    }
+}
@@ -0,0 +1,117 @@
+package com.jihll;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Global variables resolved to integer slots at compile time. The name -> slot
+// index is shared by every chunk, imported module and spawned copy, so compiled
+// code can index values directly.
+//
+// Values live in a persistent 32-way trie indexed by slot. Each node records
+// the environment allowed to write it in place ('edit'). copy() gives both
+// sides fresh edit tokens, so it is O(1), and whichever side writes a slot
+// first copies just the path to it. Nodes reachable from two environments are
+// never written again, so a spawned task reads them without locking.
+class Globals {
+    static final Object UNDEFINED = new Object();
+
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+
+    private static final class Node {
+        final Object edit;
+        final Object[] array;
+        Node(Object edit, Object[] array) { this.edit = edit; this.array = array; }
+    }
+
+    private final Map<String, Integer> slots;
+    private final List<String> names;
+    private Node root;
+    private int shift; // bits above the leaf index; 0 while the root is a leaf
+    private Object edit = new Object();
+    final Modules modules;
+
+    Globals() {
+        this.slots = new HashMap<>();
+        this.names = new ArrayList<>();
+        this.modules = new Modules();
+        this.root = leaf();
+    }
+
+    private Globals(Globals parent) {
+        this.slots = parent.slots;
+        this.names = parent.names;
+        this.modules = parent.modules.copy();
+        this.root = parent.root;
+        this.shift = parent.shift;
+        parent.edit = new Object();
+    }
+
+    // Slot for a name, allocating one on first use. Allocation alone does not
+    // define the global; reading it before assignment still fails at runtime.
+    int slot(String name) {
+        synchronized (slots) {
+            Integer slot = slots.get(name);
+            if (slot != null) return slot;
+            slots.put(name, names.size());
+            names.add(name);
+            return names.size() - 1;
+        }
+    }
+
+    String name(int slot) {
+        synchronized (slots) { return names.get(slot); }
+    }
+
+    Object get(int slot) {
+        Object value = value(slot);
+        if (value == UNDEFINED) throw new RuntimeException("Undefined global '" + name(slot) + "'");
+        return value;
+    }
+
+    // The value in a slot, or UNDEFINED.
+    Object value(int slot) {
+        if ((slot >>> BITS >>> shift) != 0) return UNDEFINED;
+        Node node = root;
+        for (int level = shift; level > 0 && node != null; level -= BITS) node = (Node) node.array[(slot >>> level) & MASK];
+        return node != null ? node.array[slot & MASK] : UNDEFINED;
+    }
+
+    void set(int slot, Object value) {
+        while ((slot >>> BITS >>> shift) != 0) {
+            Object[] array = new Object[WIDTH];
+            array[0] = root;
+            root = new Node(edit, array);
+            shift += BITS;
+        }
+        Node node = root = editable(root);
+        for (int level = shift; level > 0; level -= BITS) {
+            int index = (slot >>> level) & MASK;
+            Node child = (Node) node.array[index];
+            if (child == null) child = level == BITS ? leaf() : new Node(edit, new Object[WIDTH]);
+            else child = editable(child);
+            node.array[index] = child;
+            node = child;
+        }
+        node.array[slot & MASK] = value;
+    }
+
+    private Node editable(Node node) { return node.edit == edit ? node : new Node(edit, node.array.clone()); }
+
+    private Node leaf() {
+        Object[] array = new Object[WIDTH];
+        Arrays.fill(array, UNDEFINED);
+        return new Node(edit, array);
+    }
+
+    Object get(String name) { return get(slot(name)); }
+    void define(String name, Object value) { set(slot(name), value); }
+
+    // Later writes on either side stay private to that side; the slot index
+    // and compiled modules stay shared.
+    Globals copy() { return new Globals(this); }
+}
@@ -0,0 +1,71 @@
+package com.jihll;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+// The client behind httpGet and httpGetAsync. One HttpClient is shared by
+// every script and task, so connections to a host are kept alive and reused
+// across requests, and HTTPS sessions are resumed rather than renegotiated.
+// It is made on first use, with the timeouts from
+//   -Djihll.http.connectTimeout=MS  establishing a connection (default 10 s)
+//   -Djihll.http.timeout=MS         a whole request (default 30 s)
+// A request's timeout can also be given as the native's second argument.
+// Like httpGet always has, a failed request (no connection, timeout, bad
+// URL) gives null rather than raising an error.
+class Http {
+    static final long CONNECT_TIMEOUT = Long.getLong("jihll.http.connectTimeout", 10_000);
+    static final long TIMEOUT = Long.getLong("jihll.http.timeout", 30_000);
+
+    private Http() {}
+
+    private static final class Shared {
+        static final HttpClient client = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofMillis(CONNECT_TIMEOUT))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+    }
+
+    static Object get(Object[] args) {
+        HttpRequest request = request(args);
+        if (request == null) return null;
+        try {
+            return Shared.client.send(request, HttpResponse.BodyHandlers.ofString()).body();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    // Sends the request and returns at once with a task for join/await,
+    // which gives the body. The calling thread isn't held while it waits,
+    // so a script can have hundreds of requests in flight. The script's run
+    // doesn't end until they have all finished.
+    static JihllTask getAsync(Object[] args) {
+        JihllTask task = new JihllTask();
+        HttpRequest request = request(args);
+        if (request == null) {
+            task.complete(null);
+            return task;
+        }
+        CompletableFuture<Void> done = Shared.client.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .handle((response, error) -> error == null ? response.body() : null)
+                .thenAccept(task::complete);
+        Scheduler.track(done);
+        return task;
+    }
+
+    private static HttpRequest request(Object[] args) {
+        long timeout = args.length > 1 && args[1] instanceof Double ? (long) (double) (Double) args[1] : TIMEOUT;
+        try {
+            return HttpRequest.newBuilder(URI.create(args[0].toString())).timeout(Duration.ofMillis(timeout)).build();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
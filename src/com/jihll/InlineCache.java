@@ -0,0 +1,38 @@
+package com.jihll;
+
+// Per-site cache for GET_PROPERTY / SET_PROPERTY. Each entry maps a receiver
+// shape to what the site resolved for it: a field slot, a method, or (for
+// stores) the shape transition that adds the field. After MAX_ENTRIES shapes
+// the site is megamorphic and the VM stops filling it.
+class InlineCache {
+    static final int MAX_ENTRIES = 4;
+
+    static final class Entry {
+        final Shape shape;
+        final int slot;
+        final JihllFunction method;
+        final Shape transition;
+        Entry(Shape shape, int slot, JihllFunction method, Shape transition) {
+            this.shape = shape; this.slot = slot; this.method = method; this.transition = transition;
+        }
+    }
+
+    // Entries are immutable and published by a single array store, so a site
+    // shared by spawned threads never sees a half-written entry.
+    private final Entry[] entries = new Entry[MAX_ENTRIES];
+
+    Entry lookup(Shape shape) {
+        for (Entry entry : entries) {
+            if (entry == null) return null;
+            if (entry.shape == shape) return entry;
+        }
+        return null;
+    }
+
+    Entry add(Entry entry) {
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i] == null) { entries[i] = entry; break; }
+        }
+        return entry;
+    }
+}
@@ -0,0 +1,197 @@
+package com.jihll;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Bounded multi-producer/multi-consumer channel. Items live in a lock-free
+// ring (Vyukov's bounded queue: each cell's sequence number says whether it is
+// ready to be written or read), so send and receive are a CAS when the channel
+// is neither full nor empty. Blocked threads park in a waiter queue and are
+// unparked by the other side; parking goes through managedBlock so pool
+// workers are compensated, and is cheap on virtual threads.
+class JihllChannel {
+    static final int DEFAULT_CAPACITY = 64;
+
+    private static final Object EMPTY = new Object();
+    private static final Object NULL = new Object(); // stands in for a null item
+
+    private final Object[] items;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private volatile boolean closed;
+    private final ConcurrentLinkedQueue<Thread> receivers = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Thread> senders = new ConcurrentLinkedQueue<>();
+
+    // Capacity is rounded up to a power of two, at least 2 (a single cell
+    // can't tell "written" from "free for the next lap").
+    JihllChannel(int capacity) {
+        int size = 2;
+        while (size < capacity) size <<= 1;
+        items = new Object[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) sequences.set(i, i);
+        mask = size - 1;
+    }
+
+    private boolean offer(Object value) {
+        for (;;) {
+            long pos = tail.get();
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    items[index] = value;
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+        }
+    }
+
+    private Object poll() {
+        for (;;) {
+            long pos = head.get();
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    Object value = items[index];
+                    items[index] = null;
+                    sequences.set(index, pos + mask + 1);
+                    return value;
+                }
+            } else if (diff < 0) {
+                return EMPTY;
+            }
+        }
+    }
+
+    void send(Object value) {
+        Object item = value == null ? NULL : value;
+        for (;;) {
+            if (closed) throw new RuntimeException("Send on closed channel");
+            if (offer(item)) { wake(receivers); return; }
+            // Register, then re-check, so a receiver that frees a cell after
+            // the failed offer is guaranteed to see us and unpark us.
+            Thread self = Thread.currentThread();
+            senders.add(self);
+            try {
+                if (closed) continue;
+                if (offer(item)) { wake(receivers); return; }
+                park(() -> closed || hasRoom());
+            } finally {
+                senders.remove(self);
+            }
+        }
+    }
+
+    Object receive() {
+        for (;;) {
+            // Read closed first: an item sent just before close must still be delivered.
+            boolean wasClosed = closed;
+            Object value = tryReceive();
+            if (value != EMPTY) return value;
+            if (wasClosed) throw new RuntimeException("Channel closed");
+            Thread self = Thread.currentThread();
+            receivers.add(self);
+            try {
+                value = tryReceive();
+                if (value != EMPTY) return value;
+                park(() -> closed || hasItem());
+            } finally {
+                receivers.remove(self);
+            }
+        }
+    }
+
+    // Receives from whichever channel has an item first, starting the scan at
+    // a different channel each call so a busy one can't starve the rest.
+    static Object select(List<?> list) {
+        JihllChannel[] channels = new JihllChannel[list.size()];
+        for (int i = 0; i < channels.length; i++) {
+            if (!(list.get(i) instanceof JihllChannel)) throw new RuntimeException("select expects a list of channels.");
+            channels[i] = (JihllChannel) list.get(i);
+        }
+        if (channels.length == 0) throw new RuntimeException("select expects a list of channels.");
+        int start = ThreadLocalRandom.current().nextInt(channels.length);
+        Thread self = Thread.currentThread();
+        for (;;) {
+            Object value = scan(channels, start++);
+            if (value != EMPTY) return value;
+            for (JihllChannel channel : channels) channel.receivers.add(self);
+            try {
+                value = scan(channels, start);
+                if (value != EMPTY) return value;
+                park(() -> {
+                    boolean allClosed = true;
+                    for (JihllChannel channel : channels) {
+                        if (channel.hasItem()) return true;
+                        allClosed &= channel.closed;
+                    }
+                    return allClosed;
+                });
+            } finally {
+                for (JihllChannel channel : channels) channel.receivers.remove(self);
+            }
+        }
+    }
+
+    private static Object scan(JihllChannel[] channels, int start) {
+        boolean allClosed = true;
+        for (int i = 0; i < channels.length; i++) {
+            JihllChannel channel = channels[(start + i) % channels.length];
+            boolean wasClosed = channel.closed;
+            Object value = channel.tryReceive();
+            if (value != EMPTY) return value;
+            allClosed &= wasClosed;
+        }
+        if (allClosed) throw new RuntimeException("Channel closed");
+        return EMPTY;
+    }
+
+    private Object tryReceive() {
+        Object value = poll();
+        if (value == EMPTY) return EMPTY;
+        wake(senders);
+        return value == NULL ? null : value;
+    }
+
+    void close() {
+        closed = true;
+        wake(receivers);
+        wake(senders);
+    }
+
+    private boolean hasItem() { long pos = head.get(); return sequences.get((int) pos & mask) == pos + 1; }
+    private boolean hasRoom() { long pos = tail.get(); return sequences.get((int) pos & mask) == pos; }
+
+    private static void wake(ConcurrentLinkedQueue<Thread> waiters) {
+        if (waiters.isEmpty()) return;
+        for (Thread waiter : waiters) LockSupport.unpark(waiter);
+    }
+
+    private interface Ready { boolean check(); }
+
+    private static void park(Ready ready) {
+        try {
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                public boolean block() { LockSupport.park(this); return true; }
+                public boolean isReleasable() { return ready.check(); }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting on channel");
+        }
+    }
+
+    @Override public String toString() { return closed ? "<channel closed>" : "<channel>"; }
+}
@@ -5,12 +5,14 @@ import java.util.Map;
 class JihllClass {
     final String name;
     final Map<String, JihllFunction> methods = new HashMap<>();
+    final Shape rootShape = new Shape(this);
+    // Largest field count seen on an instance, used to size new instances up front.
+    int fieldCount = 0;
 
     JihllClass(String name) { this.name = name; }
     
     JihllFunction findMethod(String name) {
-        if (methods.containsKey(name)) return methods.get(name);
-        return null;
+        return methods.get(name);
     }
     @Override public String toString() { return name; }
-}
\ No newline at end of file
+}
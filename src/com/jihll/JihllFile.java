@@ -0,0 +1,228 @@
+package com.jihll;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Handle returned by open(path, mode). Modes:
+//   "r"  buffered reader; readLine returns the next line, or null at the end
+//   "m"  the same, but scanning the file through FileChannel.map windows, so
+//        only the lines themselves are copied into the heap
+//   "w"  buffered writer, truncating the file; "a" appends to it
+// A reading "r" handle can instead be read as a JSON stream (jsonHasNext and
+// jsonNext), and a writing one written to with jsonWrite.
+// Handles stay open until close(handle), or until the script finishes (see
+// closeAll); writes are flushed by flush(handle) and on close. A handle may be
+// shared with spawned tasks, so every operation holds its lock.
+class JihllFile {
+    // Bytes mapped at a time in "m" mode; a window can't exceed 2 GB.
+    static final int WINDOW = Integer.getInteger("jihll.mapWindow", 64 << 20);
+
+    private static final Set<JihllFile> open = ConcurrentHashMap.newKeySet();
+
+    private final String path;
+    private BufferedReader reader;
+    private Writer writer;
+    private FileChannel channel;
+    private Json.Stream json;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+    private long size;
+    private boolean closed;
+
+    JihllFile(String path, String mode) {
+        this.path = path;
+        Path file = Paths.get(path);
+        try {
+            switch (mode) {
+                case "r": reader = Files.newBufferedReader(file, StandardCharsets.UTF_8); break;
+                case "w": writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8); break;
+                case "a":
+                    writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                    break;
+                case "m":
+                    channel = FileChannel.open(file, StandardOpenOption.READ);
+                    size = channel.size();
+                    break;
+                default: throw new RuntimeException("Unknown file mode '" + mode + "' (expected r, m, w or a)");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to open file: " + path);
+        }
+        open.add(this);
+    }
+
+    synchronized Object readLine() {
+        check();
+        try {
+            if (reader != null) return reader.readLine();
+            if (channel != null) return readMapped();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read file: " + path);
+        }
+        throw new RuntimeException("File not open for reading.");
+    }
+
+    synchronized void write(Object text) {
+        check();
+        if (writer == null) throw new RuntimeException("File not open for writing.");
+        try {
+            writer.write(String.valueOf(text));
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write file: " + path);
+        }
+    }
+
+    // The stream reads ahead of the line reader, so a handle is used for one
+    // or the other.
+    synchronized boolean hasJson() { return jsonStream().hasNext(); }
+
+    synchronized Object readJson() { return jsonStream().next(); }
+
+    private Json.Stream jsonStream() {
+        check();
+        if (reader == null) throw new RuntimeException("JSON is read from a file opened with mode \"r\".");
+        if (json == null) json = new Json.Stream(reader);
+        return json;
+    }
+
+    synchronized void writeJson(Object value) {
+        check();
+        if (writer == null) throw new RuntimeException("File not open for writing.");
+        try {
+            Json.write(value, writer);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write file: " + path);
+        }
+    }
+
+    synchronized void flush() {
+        check();
+        if (writer == null) return;
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write file: " + path);
+        }
+    }
+
+    // Closing twice is harmless.
+    synchronized void close() {
+        if (closed) return;
+        closed = true;
+        open.remove(this);
+        try {
+            if (reader != null) reader.close();
+            if (writer != null) writer.close();
+            if (channel != null) channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to close file: " + path);
+        } finally {
+            unmap();
+        }
+    }
+
+    // Closes every handle the script left open, flushing writers. Called when
+    // a script run ends; errors are reported but don't stop the others closing.
+    static void closeAll() {
+        List<JihllFile> files = new ArrayList<>(open);
+        for (JihllFile file : files) {
+            try { file.close(); } catch (RuntimeException e) { System.err.println("Error: " + e.getMessage()); }
+        }
+    }
+
+    private void check() {
+        if (closed) throw new RuntimeException("File is closed.");
+    }
+
+    // The next line from the mapped file. A line is looked for within one
+    // window, remapping it to start at the line if the line runs past its
+    // end; only a line longer than a whole window is assembled in pieces.
+    private String readMapped() throws IOException {
+        if (position >= size) return null;
+        ByteArrayOutputStream pieces = null;
+        for (;;) {
+            if (window == null || position < windowStart || position >= windowStart + window.limit()) map(position);
+            int start = (int) (position - windowStart), end = window.limit(), i = start;
+            while (i < end && window.get(i) != '\n') i++;
+            boolean complete = i < end || windowStart + end == size;
+            if (!complete && start > 0 && pieces == null) { map(position); continue; }
+            byte[] bytes = new byte[i - start];
+            ByteBuffer slice = window.duplicate();
+            slice.position(start);
+            slice.get(bytes);
+            if (!complete) {
+                if (pieces == null) pieces = new ByteArrayOutputStream();
+                pieces.write(bytes);
+                position = windowStart + end;
+                continue;
+            }
+            position = windowStart + i + (i < end ? 1 : 0);
+            if (pieces != null) { pieces.write(bytes); bytes = pieces.toByteArray(); }
+            int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    private void map(long start) throws IOException {
+        unmap();
+        windowStart = start;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW, size - start));
+    }
+
+    private void unmap() {
+        MappedByteBuffer buffer = window;
+        window = null;
+        unmap(buffer);
+    }
+
+    // A mapping is otherwise released only when the GC gets to its buffer,
+    // keeping the file's pages mapped (and, on Windows, the file from being
+    // replaced); Unsafe.invokeCleaner releases it now. The buffer must not be
+    // used afterwards.
+    static void unmap(ByteBuffer buffer) {
+        if (buffer == null || INVOKE_CLEANER == null) return;
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException e) {
+            // Left to the GC.
+        }
+    }
+
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Not available on this JVM: mappings are released by the GC.
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    @Override public String toString() { return "<file " + path + ">"; }
+}
@@ -5,12 +5,34 @@ class JihllFunction {
     final int arity;
     final int address;
     final Chunk chunk;
+    // Set instead of address and chunk when the AST engine compiled the function.
+    final Node.Body body;
+    // Tier-2 state: calls counts up to Tier2.CALL_THRESHOLD, and backEdges
+    // the backward jumps its loops have taken since the last OSR check (see
+    // VM.enterCompiledLoop). Races on them only shift when compilation happens.
+    int calls;
+    int backEdges;
+    volatile Tier2.Code tier2;
+    volatile boolean tier2Failed;
+    // Calls counted under --profile (see Profiler.enter), and the function's
+    // name in its reports, made on first use (see Profiler.frameName).
+    long profiledCalls;
+    String profileName;
 
     JihllFunction(String name, int arity, int address, Chunk chunk) {
         this.name = name;
         this.arity = arity;
         this.address = address;
         this.chunk = chunk;
+        this.body = null;
+    }
+
+    JihllFunction(String name, int arity, Node.Body body) {
+        this.name = name;
+        this.arity = arity;
+        this.address = -1;
+        this.chunk = null;
+        this.body = body;
     }
 
     @Override public String toString() { return "<fn " + name + ">"; }
@@ -1,12 +1,24 @@
 package com.jihll;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class JihllInstance {
     final JihllClass klass;
-    final Map<String, Object> fields = new HashMap<>();
+    Shape shape;
+    Object[] fields;
 
-    JihllInstance(JihllClass klass) { this.klass = klass; }
+    JihllInstance(JihllClass klass) {
+        this.klass = klass;
+        this.shape = klass.rootShape;
+        this.fields = new Object[klass.fieldCount];
+    }
+
+    // Appends a field in the next slot and moves the instance to 'next'.
+    void addField(Shape next, Object value) {
+        if (next.size > klass.fieldCount) klass.fieldCount = next.size;
+        if (next.size > fields.length) fields = Arrays.copyOf(fields, Math.max(next.size, klass.fieldCount));
+        fields[next.size - 1] = value;
+        shape = next;
+    }
 
     @Override public String toString() { return klass.name + " instance"; }
-}
\ No newline at end of file
+}
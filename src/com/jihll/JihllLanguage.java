@@ -3,45 +3,101 @@ package com.jihll;
 import java.io.IOException;
 import java.nio.file.*;
 import java.util.*;
-import java.net.URI;
-import java.net.http.*;
 
 public class JihllLanguage {
     private static final VM vm = new VM();
 
     public static void main(String[] args) throws IOException {
-        vm.defineNative("print", (a) -> { System.out.println(a[0]); return null; });
-        vm.defineNative("clock", (a) -> (double) System.currentTimeMillis() / 1000.0);
-        vm.defineNative("sleep", (a) -> { try{Thread.sleep(((Double)a[0]).longValue());}catch(Exception e){} return null; });
-        vm.defineNative("len", (a) -> {
+        // Flags first: --profile and --metrics are read when their classes
+        // load, which defining the natives below already does.
+        List<String> files = new ArrayList<>();
+        String precompile = null;
+        boolean watch = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--no-peephole")) Peephole.enabled = false;
+            else if (args[i].equals("--no-cache")) ChunkFile.enabled = false;
+            else if (args[i].equals("--no-tier2")) Tier2.enabled = false;
+            else if (args[i].equals("--no-quicken")) VM.quickening = false;
+            else if (args[i].equals("--watch")) watch = true;
+            else if (args[i].equals("--profile")) System.setProperty("jihll.profile", "true");
+            else if (args[i].equals("--metrics")) System.setProperty("jihll.metrics", "true");
+            else if (args[i].equals("--engine") && i + 1 < args.length) {
+                String engine = args[++i];
+                if (!engine.equals("vm") && !engine.equals("ast")) {
+                    System.err.println("Unknown engine '" + engine + "' (expected vm or ast)");
+                    return;
+                }
+                TreeCompiler.enabled = engine.equals("ast");
+            }
+            else if (args[i].equals("--compile") && i + 1 < args.length) precompile = args[++i];
+            else files.add(args[i]);
+        }
+        if (precompile != null) {
+            System.out.println("Compiled " + ChunkFile.precompile(Paths.get(precompile)) + " file(s) in " + precompile);
+            return;
+        }
+        if (Profiler.ENABLED) Profiler.start();
+        if (Metrics.ENABLED) Metrics.register();
+
+        defineNatives(vm.globals);
+
+        boolean watching = watch;
+        Program program = () -> {
+            if (files.size() == 1 && watching) watchFile(files.get(0));
+            else if (files.size() == 1) runFile(files.get(0)); else runPrompt();
+        };
+        if (TreeCompiler.enabled) runOnLargeStack(program); else program.run();
+    }
+
+    private interface Program { void run() throws IOException; }
+
+    // The built-in functions, defined into globals; Bench defines the same ones.
+    static void defineNatives(Globals globals) {
+        VM.defineNative(globals, "print", (a) -> { System.out.println(a[0]); return null; });
+        VM.defineNative(globals, "clock", (a) -> (double) System.currentTimeMillis() / 1000.0);
+        VM.defineNative(globals, "sleep", (a) -> { Scheduler.sleep(((Double)a[0]).longValue()); return null; });
+        NativeMethod join = (a) -> {
+            if (!(a[0] instanceof JihllTask)) throw new RuntimeException("Can only join a task.");
+            return ((JihllTask) a[0]).join();
+        };
+        VM.defineNative(globals, "join", join);
+        VM.defineNative(globals, "await", join);
+
+        VM.defineNative(globals, "channel", (a) -> new JihllChannel(a.length > 0 ? ((Double)a[0]).intValue() : JihllChannel.DEFAULT_CAPACITY));
+        VM.defineNative(globals, "send", (a) -> { channel(a[0]).send(a[1]); return null; });
+        VM.defineNative(globals, "receive", (a) -> channel(a[0]).receive());
+        VM.defineNative(globals, "close", (a) -> {
+            if (a[0] instanceof JihllFile) ((JihllFile) a[0]).close(); else channel(a[0]).close();
+            return null;
+        });
+        VM.defineNative(globals, "select", (a) -> {
+            if (!(a[0] instanceof List)) throw new RuntimeException("select expects a list of channels.");
+            return JihllChannel.select((List<?>) a[0]);
+        });
+        VM.defineNative(globals, "len", (a) -> {
             if(a[0] instanceof String)return (double)((String)a[0]).length();
             if(a[0] instanceof List)return (double)((List)a[0]).size();
             return 0.0; 
         });
 
-        vm.defineNative("jsonParse", (a) -> JsonUtils.parse((String)a[0]));
-        vm.defineNative("jsonStringify", (a) -> JsonUtils.stringify(a[0]));
+        VM.defineNative(globals, "jsonParse", (a) -> Json.parse(a[0].toString()));
+        VM.defineNative(globals, "jsonStringify", (a) -> Json.stringify(a[0]));
 
-        vm.defineNative("split", (a) -> Arrays.asList(((String)a[0]).split((String)a[1])));
-        vm.defineNative("replace", (a) -> ((String)a[0]).replace((String)a[1], (String)a[2]));
-        vm.defineNative("trim", (a) -> ((String)a[0]).trim());
+        VM.defineNative(globals, "split", (a) -> Arrays.asList(((String)a[0]).split((String)a[1])));
+        VM.defineNative(globals, "replace", (a) -> ((String)a[0]).replace((String)a[1], (String)a[2]));
+        VM.defineNative(globals, "trim", (a) -> ((String)a[0]).trim());
 
-        vm.defineNative("httpGet", (a) -> {
-            try {
-                HttpClient client = HttpClient.newHttpClient();
-                HttpRequest req = HttpRequest.newBuilder().uri(URI.create(a[0].toString())).build();
-                return client.send(req, HttpResponse.BodyHandlers.ofString()).body();
-            } catch (Exception e) { return null; }
-        });
+        VM.defineNative(globals, "httpGet", Http::get);
+        VM.defineNative(globals, "httpGetAsync", Http::getAsync);
 
-        vm.defineNative("readFile", (a) -> {
+        VM.defineNative(globals, "readFile", (a) -> {
             try {
                 return Files.readString(Paths.get(a[0].toString()));
             } catch (IOException e) {
                 throw new RuntimeException("Unable to read file: " + a[0]);
             }
         });
-        vm.defineNative("appendFile", (a) -> {
+        VM.defineNative(globals, "appendFile", (a) -> {
             try {
                 Files.writeString(Paths.get(a[0].toString()), a[1].toString(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
                 return true;
@@ -49,50 +105,94 @@ public class JihllLanguage {
                 return false;
             }
         });
-        vm.defineNative("writeFile", (a) -> { try{Files.writeString(Paths.get(a[0].toString()), a[1].toString());return true;}catch(IOException e){return false;} });
+        VM.defineNative(globals, "writeFile", (a) -> { try{Files.writeString(Paths.get(a[0].toString()), a[1].toString());return true;}catch(IOException e){return false;} });
+
+        VM.defineNative(globals, "open", (a) -> new JihllFile(a[0].toString(), a.length > 1 ? a[1].toString() : "r"));
+        VM.defineNative(globals, "readLine", (a) -> file(a[0]).readLine());
+        VM.defineNative(globals, "write", (a) -> { file(a[0]).write(a[1]); return null; });
+        VM.defineNative(globals, "flush", (a) -> { file(a[0]).flush(); return null; });
+        VM.defineNative(globals, "jsonHasNext", (a) -> file(a[0]).hasJson());
+        VM.defineNative(globals, "jsonNext", (a) -> file(a[0]).readJson());
+        VM.defineNative(globals, "jsonWrite", (a) -> { file(a[0]).writeJson(a[1]); return null; });
+    }
+
+    // The AST engine recurses on the Java stack, several frames per script
+    // call, so its programs get a thread with room for deep recursion.
+    private static void runOnLargeStack(Program program) throws IOException {
+        Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(null, () -> {
+            try { program.run(); } catch (Throwable t) { failure[0] = t; }
+        }, "main", TreeCompiler.STACK_SIZE);
+        thread.start();
+        try { thread.join(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        if (failure[0] instanceof IOException) throw (IOException) failure[0];
+        if (failure[0] instanceof RuntimeException) throw (RuntimeException) failure[0];
+        if (failure[0] instanceof Error) throw (Error) failure[0];
+    }
+
+    private static JihllChannel channel(Object value) {
+        if (!(value instanceof JihllChannel)) throw new RuntimeException("Expected a channel.");
+        return (JihllChannel) value;
+    }
 
-        if (args.length == 1) runFile(args[0]); else runPrompt();
+    private static JihllFile file(Object value) {
+        if (!(value instanceof JihllFile)) throw new RuntimeException("Expected a file.");
+        return (JihllFile) value;
+    }
+
+    private static void runFile(String path) throws IOException {
+        Path script = Modules.resolve(path);
+        try {
+            execute(vm.globals.modules.enter(script, vm.globals), vm);
+            try { Scheduler.awaitIdle(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        } finally {
+            JihllFile.closeAll();
+        }
+    }
+
+    // Reruns the script in a fresh environment whenever it or a module it
+    // imported changes. Unchanged modules keep their compiled chunks.
+    private static void watchFile(String path) throws IOException {
+        Path script = Modules.resolve(path);
+        for (;;) {
+            VM run = new VM(vm.globals.copy());
+            try {
+                execute(run.globals.modules.enter(script, run.globals), run);
+                Scheduler.awaitIdle();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                System.err.println("Error: " + e.getMessage());
+            } finally {
+                JihllFile.closeAll();
+            }
+            System.out.println("--- watching " + path + " for changes ---");
+            while (!vm.globals.modules.changed()) {
+                try { Thread.sleep(250); } catch (InterruptedException e) { return; }
+            }
+        }
+    }
+    // Runs a compiled script on the engine that compiled it.
+    private static void execute(Object code, VM vm) {
+        if (code instanceof Chunk) vm.interpret((Chunk) code);
+        else TreeCompiler.run((Node.Body) code, vm.globals);
     }
 
-    private static void runFile(String path) throws IOException { run(Files.readString(Paths.get(path))); }
     private static void runPrompt() {
         Scanner s = new Scanner(System.in);
         System.out.println("JillLanguage v2.0 (Stack VM)");
         while(true) { System.out.print("> "); if(!s.hasNextLine())break; run(s.nextLine()); }
     }
     private static void run(String source) {
-        new VM().interpret(new Compiler(new Chunk()).chunk); 
+        new VM().interpret(new Compiler(new Chunk(), vm.globals).chunk); 
         
-        Lexer l = new Lexer(source);
-        Parser p = new Parser(l.scanTokens());
+        Parser p = new Parser(new Lexer(source));
+        if (TreeCompiler.enabled) {
+            TreeCompiler.run(new TreeCompiler(vm.globals).compile(p.parse()), vm.globals);
+            return;
+        }
         Chunk c = new Chunk();
-        new Compiler(c).compile(p.parse());
+        new Compiler(c, vm.globals).compile(p.parse());
         vm.interpret(c);
     }
-    
-    static class JsonUtils {
-        static Object parse(String json) {
-            json = json.trim();
-            if (json.startsWith("{")) return new HashMap<>();
-            if (json.startsWith("[")) return new ArrayList<>();
-            return json;
-        }
-        
-        static String stringify(Object obj) {
-            if (obj instanceof Map) {
-                StringBuilder sb = new StringBuilder("{");
-                Map<?,?> m = (Map<?,?>)obj;
-                int i=0;
-                for(Map.Entry<?,?> e : m.entrySet()) {
-                    if(i++ > 0) sb.append(", ");
-                    sb.append(e.getKey()).append(": ").append(stringify(e.getValue()));
-                }
-                return sb.append("}").toString();
-            }
-            if (obj instanceof List) {
-                return obj.toString();
-            }
-            return String.valueOf(obj);
-        }
-    }
 }
\ No newline at end of file
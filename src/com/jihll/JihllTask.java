@@ -0,0 +1,40 @@
+package com.jihll;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+// Handle returned by spawn. join blocks until the task finishes, then returns
+// its result or rethrows its error in the joining script.
+class JihllTask {
+    private final CompletableFuture<Object> result = new CompletableFuture<>();
+    private volatile boolean joined;
+    RuntimeException error;
+
+    void complete(Object value) { result.complete(value); }
+
+    void fail(RuntimeException error) {
+        this.error = error;
+        Scheduler.failed(this);
+        result.completeExceptionally(error);
+    }
+
+    // Failed and never joined: nothing in the script saw the error.
+    boolean unobserved() { return error != null && !joined; }
+
+    // CompletableFuture.join blocks through ForkJoinPool.managedBlock, so a
+    // task joining another task on a pool thread doesn't starve the pool.
+    Object join() {
+        joined = true;
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw e;
+        }
+    }
+
+    boolean isDone() { return result.isDone(); }
+
+    @Override public String toString() { return result.isDone() ? "<task done>" : "<task>"; }
+}
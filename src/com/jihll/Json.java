@@ -0,0 +1,447 @@
+package com.jihll;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// JSON (RFC 8259) to and from script values: objects become maps (keeping
+// their key order), arrays lists, numbers doubles, and true/false/null the
+// script's own. Parsing is one pass over a char buffer: a string without
+// escapes is made straight from the buffer, and numbers of up to 15
+// significant digits with a small exponent are computed from their digits,
+// exactly as Double.parseDouble would round them, without making a String.
+//
+// A parser reads either one whole text or a Reader, refilling its buffer as
+// it goes; Stream uses the second to return the elements of a top-level
+// array one at a time, so a document need not fit in the heap. Serializing
+// writes into a buffer reused by each thread, draining it into a Writer as
+// it fills when there is one.
+final class Json {
+    // Deeper nesting is refused rather than left to overflow the Java stack.
+    // It also stops the serializer on a list or map that contains itself.
+    static final int MAX_DEPTH = 1000;
+
+    private static final double[] POWERS = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final ThreadLocal<StringBuilder> buffers = ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+    private Json() {}
+
+    static Object parse(String text) {
+        Parser parser = new Parser(text.toCharArray(), null);
+        Object value = parser.value(0);
+        if (parser.skip() >= 0) throw parser.error("unexpected trailing content");
+        return value;
+    }
+
+    static String stringify(Object value) {
+        StringBuilder out = buffers.get();
+        try {
+            write(value, out, null, 0);
+            return out.toString();
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Only a Writer throws.
+        } finally {
+            // A buffer that grew for one huge value isn't kept around.
+            if (out.capacity() > 1 << 20) buffers.remove();
+            else out.setLength(0);
+        }
+    }
+
+    // Serializes value into sink, through the thread's buffer.
+    static void write(Object value, Writer sink) throws IOException {
+        StringBuilder out = buffers.get();
+        try {
+            write(value, out, sink, 0);
+            drain(out, sink);
+        } finally {
+            if (out.capacity() > 1 << 20) buffers.remove();
+            else out.setLength(0);
+        }
+    }
+
+    private static void write(Object value, StringBuilder out, Writer sink, int depth) throws IOException {
+        if (depth > MAX_DEPTH) throw new RuntimeException("Value is nested too deeply to convert to JSON.");
+        if (value == null) out.append("null");
+        else if (value instanceof Boolean) out.append((boolean) (Boolean) value);
+        else if (value instanceof Double) number((Double) value, out);
+        else if (value instanceof Map) {
+            out.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) out.append(',');
+                first = false;
+                Object key = entry.getKey();
+                string(key instanceof Double ? format((Double) key) : String.valueOf(ConcatString.flatten(key)), out);
+                out.append(':');
+                write(entry.getValue(), out, sink, depth + 1);
+            }
+            out.append('}');
+        } else if (value instanceof List) {
+            out.append('[');
+            List<?> list = (List<?>) value;
+            for (int i = 0; i < list.size(); i++) {
+                if (i > 0) out.append(',');
+                write(list.get(i), out, sink, depth + 1);
+            }
+            out.append(']');
+        } else string(String.valueOf(ConcatString.flatten(value)), out);
+        if (sink != null && out.length() >= 8192) drain(out, sink);
+    }
+
+    private static void drain(StringBuilder out, Writer sink) throws IOException {
+        sink.append(out);
+        out.setLength(0);
+    }
+
+    // Whole numbers are written without a fraction; NaN and the infinities,
+    // which JSON can't express, as null.
+    private static void number(double d, StringBuilder out) {
+        if (Double.isNaN(d) || Double.isInfinite(d)) out.append("null");
+        else if (d == (long) d && Math.abs(d) < 1e15) out.append((long) d);
+        else out.append(d);
+    }
+
+    private static String format(double d) {
+        StringBuilder out = new StringBuilder();
+        number(d, out);
+        return out.toString();
+    }
+
+    private static void string(String s, StringBuilder out) {
+        out.append('"');
+        int run = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') continue;
+            out.append(s, run, i);
+            run = i + 1;
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                case '\b': out.append("\\b"); break;
+                case '\f': out.append("\\f"); break;
+                default: out.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 15, 16));
+            }
+        }
+        out.append(s, run, s.length()).append('"');
+    }
+
+    // The values of a document read from a Reader: each element in turn if
+    // it is an array, otherwise the document itself as the only value.
+    static final class Stream {
+        private static final int START = 0, FIRST = 1, NEXT = 2, READY = 3, SINGLE = 4, DONE = 5;
+
+        private final Parser parser;
+        private int state = START;
+
+        Stream(Reader in) { parser = new Parser(new char[8192], in); }
+
+        boolean hasNext() {
+            switch (state) {
+                case START: {
+                    int c = parser.skip();
+                    if (c < 0) { state = DONE; return false; }
+                    if (c != '[') { state = SINGLE; return true; }
+                    parser.pos++;
+                    if (parser.skip() == ']') { parser.pos++; finish(); return false; }
+                    state = FIRST;
+                    return true;
+                }
+                case NEXT: {
+                    int c = parser.skip();
+                    if (c == ',') { parser.pos++; state = READY; return true; }
+                    if (c == ']') { parser.pos++; finish(); return false; }
+                    throw parser.error("expected ',' or ']'");
+                }
+                case DONE: return false;
+                default: return true;
+            }
+        }
+
+        Object next() {
+            if (!hasNext()) throw new RuntimeException("No more JSON values.");
+            if (state == SINGLE) {
+                Object value = parser.value(0);
+                finish();
+                return value;
+            }
+            Object value = parser.value(1);
+            state = NEXT;
+            return value;
+        }
+
+        private void finish() {
+            state = DONE;
+            if (parser.skip() >= 0) throw parser.error("unexpected trailing content");
+        }
+    }
+
+    // Recursive descent over buf[pos..limit). With a Reader, fill() reads
+    // more, keeping everything from mark on when a token is being scanned.
+    private static final class Parser {
+        private final Reader in;
+        private char[] buf;
+        int pos;
+        private int limit;
+        private int mark = -1;
+        private final String[] keys = new String[256];
+        private long discarded;
+
+        Parser(char[] buf, Reader in) {
+            this.buf = buf;
+            this.in = in;
+            this.limit = in == null ? buf.length : 0;
+        }
+
+        Object value(int depth) {
+            int c = skip();
+            switch (c) {
+                case '{': return object(depth);
+                case '[': return array(depth);
+                case '"': return string(false);
+                case 't': literal("true"); return true;
+                case 'f': literal("false"); return false;
+                case 'n': literal("null"); return null;
+                case -1: throw error("unexpected end of input");
+                default:
+                    if (c == '-' || (c >= '0' && c <= '9')) return number();
+                    throw error("unexpected character '" + (char) c + "'");
+            }
+        }
+
+        private Map<Object, Object> object(int depth) {
+            if (depth >= MAX_DEPTH) throw error("nested too deeply");
+            pos++;
+            Map<Object, Object> map = new LinkedHashMap<>();
+            int c = skip();
+            if (c == '}') { pos++; return map; }
+            for (;;) {
+                if (c != '"') throw error("expected a string key");
+                String key = string(true);
+                if (skip() != ':') throw error("expected ':'");
+                pos++;
+                map.put(key, value(depth + 1));
+                c = skip();
+                if (c == '}') { pos++; return map; }
+                if (c < 0) throw error("unexpected end of input");
+                if (c != ',') throw error("expected ',' or '}'");
+                pos++;
+                c = skip();
+            }
+        }
+
+        private List<Object> array(int depth) {
+            if (depth >= MAX_DEPTH) throw error("nested too deeply");
+            pos++;
+            List<Object> list = new ArrayList<>();
+            if (skip() == ']') { pos++; return list; }
+            for (;;) {
+                list.add(value(depth + 1));
+                int c = skip();
+                if (c == ']') { pos++; return list; }
+                if (c < 0) throw error("unexpected end of input");
+                if (c != ',') throw error("expected ',' or ']'");
+                pos++;
+            }
+        }
+
+        // Keys repeat from object to object, so a short one is looked up in
+        // 'keys' by its text and the String already made for it reused.
+        private String string(boolean key) {
+            pos++;
+            StringBuilder escaped = null;
+            mark = pos;
+            int i = pos;
+            for (;;) {
+                if (i == limit) {
+                    pos = i;
+                    if (!fill()) throw error("unterminated string");
+                    i = pos;
+                    continue;
+                }
+                char c = buf[i];
+                if (c == '"') {
+                    String s = escaped != null ? escaped.append(buf, mark, i - mark).toString()
+                            : key ? symbol(mark, i - mark) : new String(buf, mark, i - mark);
+                    pos = i + 1;
+                    mark = -1;
+                    return s;
+                }
+                if (c == '\\') {
+                    if (escaped == null) escaped = new StringBuilder(i - mark + 16);
+                    escaped.append(buf, mark, i - mark);
+                    pos = i + 1;
+                    mark = -1;
+                    escape(escaped);
+                    mark = i = pos;
+                    continue;
+                }
+                if (c < 0x20) { pos = i; throw error("control character in string"); }
+                i++;
+            }
+        }
+
+        private String symbol(int start, int length) {
+            if (length > 32) return new String(buf, start, length);
+            int hash = 0;
+            for (int i = start; i < start + length; i++) hash = 31 * hash + buf[i];
+            int slot = (hash ^ hash >>> 8) & (keys.length - 1);
+            String s = keys[slot];
+            if (s != null && s.length() == length) {
+                int i = 0;
+                while (i < length && s.charAt(i) == buf[start + i]) i++;
+                if (i == length) return s;
+            }
+            return keys[slot] = new String(buf, start, length);
+        }
+
+        private void escape(StringBuilder out) {
+            char c = next();
+            switch (c) {
+                case '"': case '\\': case '/': out.append(c); break;
+                case 'n': out.append('\n'); break;
+                case 'r': out.append('\r'); break;
+                case 't': out.append('\t'); break;
+                case 'b': out.append('\b'); break;
+                case 'f': out.append('\f'); break;
+                case 'u': {
+                    int code = 0;
+                    for (int k = 0; k < 4; k++) {
+                        int digit = Character.digit(next(), 16);
+                        if (digit < 0) { pos--; throw error("invalid \\u escape"); }
+                        code = code * 16 + digit;
+                    }
+                    out.append((char) code);
+                    break;
+                }
+                default: pos--; throw error("invalid escape '\\" + c + "'");
+            }
+        }
+
+        // Digits are gathered into a long while they fit; the fast path
+        // applies when the value and the power of ten are both exact doubles,
+        // so one multiply or divide rounds correctly. Anything else is handed
+        // to Double.parseDouble.
+        private double number() {
+            mark = pos;
+            boolean negative = peek() == '-';
+            if (negative) pos++;
+            long digits = 0;
+            int significant = 0, exponent = 0;
+            int c = peek();
+            if (c == '0') {
+                pos++;
+            } else if (c >= '1' && c <= '9') {
+                while ((c = peek()) >= '0' && c <= '9') {
+                    if (significant < 18) { digits = digits * 10 + (c - '0'); significant++; } else { exponent++; significant++; }
+                    pos++;
+                }
+            } else {
+                throw error("expected a digit");
+            }
+            if (peek() == '.') {
+                pos++;
+                if (!isDigit(peek())) throw error("expected a digit");
+                while ((c = peek()) >= '0' && c <= '9') {
+                    if (significant < 18) {
+                        digits = digits * 10 + (c - '0');
+                        exponent--;
+                        if (digits != 0) significant++;
+                    }
+                    pos++;
+                }
+            }
+            c = peek();
+            if (c == 'e' || c == 'E') {
+                pos++;
+                c = peek();
+                boolean minus = c == '-';
+                if (c == '-' || c == '+') pos++;
+                if (!isDigit(peek())) throw error("expected a digit");
+                int e = 0;
+                while ((c = peek()) >= '0' && c <= '9') {
+                    if (e < 100000) e = e * 10 + (c - '0');
+                    pos++;
+                }
+                exponent += minus ? -e : e;
+            }
+            double value;
+            if (significant <= 15 && exponent >= -22 && exponent <= 22) {
+                value = exponent >= 0 ? digits * POWERS[exponent] : digits / POWERS[-exponent];
+                if (negative) value = -value;
+            } else {
+                value = Double.parseDouble(new String(buf, mark, pos - mark));
+            }
+            mark = -1;
+            return value;
+        }
+
+        private static boolean isDigit(int c) { return c >= '0' && c <= '9'; }
+
+        private void literal(String word) {
+            for (int i = 0; i < word.length(); i++) {
+                if (peek() != word.charAt(i)) throw error("unexpected character");
+                pos++;
+            }
+        }
+
+        // The next non-whitespace character, not consumed, or -1 at the end.
+        int skip() {
+            for (;;) {
+                if (pos == limit && !fill()) return -1;
+                char c = buf[pos];
+                if (c != ' ' && c != '\n' && c != '\r' && c != '\t') return c;
+                pos++;
+            }
+        }
+
+        private int peek() {
+            if (pos == limit && !fill()) return -1;
+            return buf[pos];
+        }
+
+        private char next() {
+            if (pos == limit && !fill()) throw error("unexpected end of input");
+            return buf[pos++];
+        }
+
+        // Reads more input after buf[limit - 1], moving what is still needed
+        // to the front of the buffer, or growing it if that is all of it.
+        private boolean fill() {
+            if (in == null) return false;
+            int keep = mark >= 0 ? mark : pos;
+            if (keep > 0) {
+                System.arraycopy(buf, keep, buf, 0, limit - keep);
+                discarded += keep;
+                limit -= keep;
+                pos -= keep;
+                if (mark >= 0) mark -= keep;
+            } else if (limit == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+            try {
+                int n = in.read(buf, limit, buf.length - limit);
+                if (n <= 0) return false;
+                limit += n;
+                return true;
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to read JSON: " + e.getMessage());
+            }
+        }
+
+        RuntimeException error(String message) {
+            return new RuntimeException("Invalid JSON at offset " + (discarded + pos) + ": " + message);
+        }
+    }
+}
@@ -1,143 +1,258 @@
 package com.jihll;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
+// Scans the source one token at a time, on demand: next() reads a token into
+// the fields below, recording where it lies in the source rather than making
+// a Token or copying its text. The parser pulls tokens as it goes, so a
+// script's tokens never all exist at once. Text is only copied for what
+// outlives the scan: string literals, and identifiers, which are shared
+// through a small table so each distinct name is one String.
 class Lexer {
     private final String source;
-    private final List<Token> tokens = new ArrayList<>();
-    private int start = 0;
     private int current = 0;
-    private static final Map<String, TokenType> keywords;
-
-    static {
-        keywords = new HashMap<>();
-        keywords.put("if", TokenType.IF);
-        keywords.put("else", TokenType.ELSE);
-        keywords.put("while", TokenType.WHILE);
-        keywords.put("for", TokenType.FOR);
-        keywords.put("in", TokenType.IN);
-        keywords.put("fun", TokenType.FUN);
-        keywords.put("return", TokenType.RETURN);
-        keywords.put("spawn", TokenType.SPAWN);
-        keywords.put("import", TokenType.IMPORT);
-        keywords.put("class", TokenType.CLASS);
-        keywords.put("this", TokenType.THIS);
-        keywords.put("try", TokenType.TRY);
-        keywords.put("catch", TokenType.CATCH);
-        keywords.put("true", TokenType.TRUE);
-        keywords.put("false", TokenType.FALSE);
-        keywords.put("print", TokenType.PRINT);
-    }
+    private int line = 1;
+    private final String[] names = new String[256];
+
+    // The token last read by next().
+    TokenType type;
+    int start, end, tokenLine;
+    Object literal;
 
     Lexer(String source) { this.source = source; }
 
-    List<Token> scanTokens() {
-        while (!isAtEnd()) {
+    // Reads the next token; at the end of the source, EOF every time.
+    TokenType next() {
+        literal = null;
+        for (;;) {
+            if (isAtEnd()) {
+                start = end = current;
+                tokenLine = line;
+                return type = TokenType.EOF;
+            }
             start = current;
-            scanToken();
+            tokenLine = line;
+            char c = source.charAt(current++);
+            switch (c) {
+                case ':': return token(TokenType.COLON);
+                case '.': return dot();
+                case '(': return token(TokenType.LEFT_PAREN);
+                case ')': return token(TokenType.RIGHT_PAREN);
+                case '[': return token(TokenType.LEFT_BRACKET);
+                case ']': return token(TokenType.RIGHT_BRACKET);
+                case '{': return token(TokenType.LEFT_BRACE);
+                case '}': return token(TokenType.RIGHT_BRACE);
+                case ',': return token(TokenType.COMMA);
+
+                case '+': return token(TokenType.PLUS);
+                case '-': return token(TokenType.MINUS);
+                case '*': return token(TokenType.STAR);
+                case '/': return token(TokenType.SLASH);
+
+                case '=': return token(match('=') ? TokenType.EQUAL_EQUAL : TokenType.EQUAL);
+                case '!': return token(match('=') ? TokenType.BANG_EQUAL : TokenType.BANG);
+                case '<': return token(match('=') ? TokenType.LESS_EQUAL : TokenType.LESS);
+                case '>': return token(match('=') ? TokenType.GREATER_EQUAL : TokenType.GREATER);
+
+                case '#': while (!isAtEnd() && source.charAt(current) != '\n') current++; break;
+
+                case ' ':
+                case '\r':
+                case '\t': break;
+                case '\n': line++; break;
+
+                case '"': return string();
+
+                default:
+                    if (isDigit(c)) return number();
+                    if (isAlpha(c)) return identifier();
+                    throw new RuntimeException("Unexpected character: " + c);
+            }
         }
-        tokens.add(new Token(TokenType.EOF, "", null));
-        return tokens;
     }
 
-    private void scanToken() {
-        char c = advance();
-        switch (c) {
-            case ':': addToken(TokenType.COLON); break;
-            case '.': addToken(isBlockDot() ? TokenType.BLOCK_DOT : TokenType.DOT); break;
-            case '(': addToken(TokenType.LEFT_PAREN); break;
-            case ')': addToken(TokenType.RIGHT_PAREN); break;
-            case '[': addToken(TokenType.LEFT_BRACKET); break;
-            case ']': addToken(TokenType.RIGHT_BRACKET); break;
-            case '{': addToken(TokenType.LEFT_BRACE); break;
-            case '}': addToken(TokenType.RIGHT_BRACE); break;
-            case ',': addToken(TokenType.COMMA); break;
-            
-            case '+': addToken(TokenType.PLUS); break;
-            case '-': addToken(TokenType.MINUS); break;
-            case '*': addToken(TokenType.STAR); break;
-            case '/': addToken(TokenType.SLASH); break;
-            
-            case '=': addToken(match('=') ? TokenType.EQUAL_EQUAL : TokenType.EQUAL); break;
-            case '!': addToken(match('=') ? TokenType.BANG_EQUAL : TokenType.BANG); break;
-            case '<': addToken(match('=') ? TokenType.LESS_EQUAL : TokenType.LESS); break;
-            case '>': addToken(match('=') ? TokenType.GREATER_EQUAL : TokenType.GREATER); break;
-            
-            case '#': while (peek() != '\n' && !isAtEnd()) advance(); break;
-
-            case ' ':
-            case '\r':
-            case '\t':
-            case '\n': break;
-
-            case '"': string(); break;
-
-            default:
-                if (isDigit(c)) number();
-                else if (isAlpha(c)) identifier();
-                else throw new RuntimeException("Unexpected character: " + c);
+    // The text of the token last read.
+    String text() { return source.substring(start, end); }
+
+    // The fixed text of a token type, or null for names and literals.
+    static String text(TokenType type) {
+        switch (type) {
+            case IF: return "if";
+            case ELSE: return "else";
+            case WHILE: return "while";
+            case FOR: return "for";
+            case IN: return "in";
+            case FUN: return "fun";
+            case RETURN: return "return";
+            case SPAWN: return "spawn";
+            case IMPORT: return "import";
+            case CLASS: return "class";
+            case THIS: return "this";
+            case TRY: return "try";
+            case CATCH: return "catch";
+            case TRUE: return "true";
+            case FALSE: return "false";
+            case PRINT: return "print";
+            case COLON: return ":";
+            case DOT: case BLOCK_DOT: return ".";
+            case COMMA: return ",";
+            case LEFT_PAREN: return "(";
+            case RIGHT_PAREN: return ")";
+            case LEFT_BRACKET: return "[";
+            case RIGHT_BRACKET: return "]";
+            case LEFT_BRACE: return "{";
+            case RIGHT_BRACE: return "}";
+            case EQUAL: return "=";
+            case PLUS: return "+";
+            case MINUS: return "-";
+            case STAR: return "*";
+            case SLASH: return "/";
+            case EQUAL_EQUAL: return "==";
+            case BANG: return "!";
+            case BANG_EQUAL: return "!=";
+            case LESS: return "<";
+            case LESS_EQUAL: return "<=";
+            case GREATER: return ">";
+            case GREATER_EQUAL: return ">=";
+            case EOF: return "";
+            default: return null;
         }
     }
 
-    private void identifier() {
-        while (isAlphaNumeric(peek())) advance();
-        String text = source.substring(start, current);
-        TokenType type = keywords.getOrDefault(text, TokenType.IDENTIFIER);
-        addToken(type);
+    // The identifier last read, as the String every other use of the name shares.
+    String name() {
+        int length = end - start, hash = 0;
+        for (int i = start; i < end; i++) hash = 31 * hash + source.charAt(i);
+        int slot = (hash ^ hash >>> 8) & (names.length - 1);
+        String name = names[slot];
+        if (name == null || name.length() != length || !source.startsWith(name, start)) {
+            names[slot] = name = source.substring(start, end);
+        }
+        return name;
     }
 
-    private void number() {
-        while (isDigit(peek())) advance();
-        if (peek() == '.' && isDigit(peekNext())) {
-            advance(); while (isDigit(peek())) advance();
+    private TokenType token(TokenType type) {
+        end = current;
+        return this.type = type;
+    }
+
+    // A '.' ending its line (before any comment) closes a block. The blanks
+    // after it are skipped here, as they would be anyway.
+    private TokenType dot() {
+        end = current;
+        while (!isAtEnd() && (source.charAt(current) == ' ' || source.charAt(current) == '\t')) current++;
+        if (isAtEnd()) return type = TokenType.BLOCK_DOT;
+        char c = source.charAt(current);
+        return type = c == '\n' || c == '\r' || c == '#' ? TokenType.BLOCK_DOT : TokenType.DOT;
+    }
+
+    private TokenType identifier() {
+        while (!isAtEnd() && isAlphaNumeric(source.charAt(current))) current++;
+        end = current;
+        return type = keyword();
+    }
+
+    // Keywords by length and first letter; no hashing and no String.
+    private TokenType keyword() {
+        switch (end - start) {
+            case 2:
+                if (is("if")) return TokenType.IF;
+                if (is("in")) return TokenType.IN;
+                break;
+            case 3:
+                switch (source.charAt(start)) {
+                    case 'f':
+                        if (is("fun")) return TokenType.FUN;
+                        if (is("for")) return TokenType.FOR;
+                        break;
+                    case 't': if (is("try")) return TokenType.TRY; break;
+                }
+                break;
+            case 4:
+                switch (source.charAt(start)) {
+                    case 'e': if (is("else")) return TokenType.ELSE; break;
+                    case 't':
+                        if (is("this")) return TokenType.THIS;
+                        if (is("true")) return TokenType.TRUE;
+                        break;
+                }
+                break;
+            case 5:
+                switch (source.charAt(start)) {
+                    case 'w': if (is("while")) return TokenType.WHILE; break;
+                    case 's': if (is("spawn")) return TokenType.SPAWN; break;
+                    case 'c':
+                        if (is("class")) return TokenType.CLASS;
+                        if (is("catch")) return TokenType.CATCH;
+                        break;
+                    case 'f': if (is("false")) return TokenType.FALSE; break;
+                    case 'p': if (is("print")) return TokenType.PRINT; break;
+                }
+                break;
+            case 6:
+                switch (source.charAt(start)) {
+                    case 'r': if (is("return")) return TokenType.RETURN; break;
+                    case 'i': if (is("import")) return TokenType.IMPORT; break;
+                }
+                break;
         }
-        addToken(TokenType.NUMBER, Double.parseDouble(source.substring(start, current)));
+        return TokenType.IDENTIFIER;
     }
 
-    private void string() {
-        while (!isAtEnd()) {
-            if (peek() == '"') {
-                break; 
-            }
-            if (peek() == '\\') { 
-                // Skip the escape character so we don't stop at the next quote
-                advance(); 
-                if (!isAtEnd()) advance(); 
-            } else {
-                advance();
+    private boolean is(String word) { return source.startsWith(word, start); }
+
+    private static final double[] POWERS = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+    };
+
+    // Up to 15 digits, the value is exact as a long and so is the power of
+    // ten, so one division rounds the same way Double.parseDouble does.
+    private TokenType number() {
+        long digits = source.charAt(start) - '0';
+        int count = 1, fraction = 0;
+        while (!isAtEnd() && isDigit(source.charAt(current))) { digits = digits * 10 + source.charAt(current++) - '0'; count++; }
+        if (peek() == '.' && isDigit(peekNext())) {
+            current++;
+            while (!isAtEnd() && isDigit(source.charAt(current))) {
+                digits = digits * 10 + source.charAt(current++) - '0';
+                count++;
+                fraction++;
             }
         }
-
-        if (isAtEnd()) throw new RuntimeException("Unterminated string.");
-        
-        advance(); // The closing "
-
-        // Process escapes (turn \" into " in memory)
-        String value = source.substring(start + 1, current - 1);
-        value = value.replace("\\\"", "\"")
-                     .replace("\\n", "\n")
-                     .replace("\\t", "\t")
-                     .replace("\\\\", "\\");
-        
-        addToken(TokenType.STRING, value);
+        end = current;
+        literal = count <= 15 ? digits / POWERS[fraction] : Double.parseDouble(text());
+        return type = TokenType.NUMBER;
     }
 
-    private boolean isBlockDot() {
-        int i = current;
-        while (i < source.length()) {
-            char c = source.charAt(i);
-            if (c == ' ' || c == '\t') {
-                i++;
+    // Escapes are decoded in the same pass: \" \n \t and \\; a backslash
+    // before anything else is kept as written.
+    private TokenType string() {
+        StringBuilder escaped = null;
+        int run = current;
+        for (;;) {
+            if (isAtEnd()) throw new RuntimeException("Unterminated string.");
+            char c = source.charAt(current);
+            if (c == '"') break;
+            if (c == '\\' && current + 1 < source.length()) {
+                if (escaped == null) escaped = new StringBuilder();
+                escaped.append(source, run, current);
+                char e = source.charAt(current + 1);
+                switch (e) {
+                    case '"': escaped.append('"'); break;
+                    case 'n': escaped.append('\n'); break;
+                    case 't': escaped.append('\t'); break;
+                    case '\\': escaped.append('\\'); break;
+                    default: escaped.append('\\').append(e); if (e == '\n') line++;
+                }
+                current += 2;
+                run = current;
                 continue;
             }
-            if (c == '\r' || c == '\n') return true;
-            if (c == '#') return true;
-            return false;
+            if (c == '\n') line++;
+            current++;
         }
-        return true; // EOF
+        literal = escaped == null ? source.substring(run, current) : escaped.append(source, run, current).toString();
+        current++; // The closing "
+        end = current;
+        return type = TokenType.STRING;
     }
 
     private boolean match(char expected) {
@@ -146,11 +261,8 @@ class Lexer {
     }
     private char peek() { return isAtEnd() ? '\0' : source.charAt(current); }
     private char peekNext() { return (current + 1 >= source.length()) ? '\0' : source.charAt(current + 1); }
-    private boolean isAlpha(char c) { return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_'; }
-    private boolean isAlphaNumeric(char c) { return isAlpha(c) || isDigit(c); }
-    private boolean isDigit(char c) { return c >= '0' && c <= '9'; }
+    private static boolean isAlpha(char c) { return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_'; }
+    private static boolean isAlphaNumeric(char c) { return isAlpha(c) || isDigit(c); }
+    private static boolean isDigit(char c) { return c >= '0' && c <= '9'; }
     private boolean isAtEnd() { return current >= source.length(); }
-    private char advance() { return source.charAt(current++); }
-    private void addToken(TokenType type) { addToken(type, null); }
-    private void addToken(TokenType type, Object literal) { tokens.add(new Token(type, source.substring(start, current), literal)); }
-}
\ No newline at end of file
+}
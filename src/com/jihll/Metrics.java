@@ -0,0 +1,147 @@
+package com.jihll;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+// Runtime counters, published as the read-only MBean com.jihll:type=VM
+// (--metrics or -Djihll.metrics=true). Counters are LongAdders, so threads
+// running scripts never contend on them. A VM counts instructions and calls
+// in plain fields and adds them in batches (see VM.flushMetrics), so the
+// published figures trail the running code by at most BATCH instructions per
+// thread. Instruction, call and frame figures are the bytecode VM's; the rest
+// cover both engines.
+//
+// ENABLED is read once, before any script runs, so when it is off the checks
+// compile away and nothing is registered.
+class Metrics implements DynamicMBean {
+    static final boolean ENABLED = Boolean.getBoolean("jihll.metrics");
+    static final int BATCH = 1 << 16;
+
+    static final LongAdder instructions = new LongAdder();
+    static final LongAdder calls = new LongAdder();
+    static final LongAccumulator maxFrameDepth = new LongAccumulator(Math::max, 0);
+    static final LongAdder tasksSpawned = new LongAdder();
+    static final LongAdder tasksActive = new LongAdder();
+    static final LongAdder modulesImported = new LongAdder();
+    static final LongAdder exceptionsCaught = new LongAdder();
+
+    private static final class NativeStats {
+        final LongAdder calls = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+    }
+
+    private static final Map<String, NativeStats> natives = new ConcurrentHashMap<>();
+    // Module path -> { code words, constants }, as last compiled.
+    private static final Map<String, int[]> modules = new ConcurrentHashMap<>();
+
+    private Metrics() {}
+
+    static void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Metrics(), new ObjectName("com.jihll:type=VM"));
+        } catch (JMException e) {
+            System.err.println("Metrics unavailable: " + e.getMessage());
+        }
+    }
+
+    // Wraps a native so its calls and time spent are counted under its name.
+    static NativeMethod timed(String name, NativeMethod method) {
+        NativeStats stats = natives.computeIfAbsent(name, n -> new NativeStats());
+        return args -> {
+            long start = System.nanoTime();
+            try {
+                return method.invoke(args);
+            } finally {
+                stats.nanos.add(System.nanoTime() - start);
+                stats.calls.increment();
+            }
+        };
+    }
+
+    // A call tier-2 code makes to itself, which the VM never sees.
+    static void countCall() { calls.increment(); }
+
+    static void module(String path, Chunk chunk) { modules.put(path, new int[] { chunk.count, chunk.constantCount }); }
+
+    // Attribute values by name, read fresh on every request.
+    private static Map<String, Object> snapshot() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("InstructionsExecuted", instructions.sum());
+        values.put("Calls", calls.sum());
+        values.put("MaxFrameDepth", maxFrameDepth.get());
+        values.put("TasksSpawned", tasksSpawned.sum());
+        values.put("TasksActive", tasksActive.sum());
+        values.put("ModulesImported", modulesImported.sum());
+        values.put("ExceptionsCaught", exceptionsCaught.sum());
+        for (Map.Entry<String, NativeStats> entry : new TreeMap<>(natives).entrySet()) {
+            long count = entry.getValue().calls.sum();
+            long nanos = entry.getValue().nanos.sum();
+            values.put("Native." + entry.getKey() + ".Calls", count);
+            values.put("Native." + entry.getKey() + ".TotalNanos", nanos);
+            values.put("Native." + entry.getKey() + ".MeanNanos", count == 0 ? 0L : nanos / count);
+        }
+        for (Map.Entry<String, int[]> entry : new TreeMap<>(modules).entrySet()) {
+            values.put("Module." + entry.getKey() + ".CodeWords", (long) entry.getValue()[0]);
+            values.put("Module." + entry.getKey() + ".Constants", (long) entry.getValue()[1]);
+        }
+        return values;
+    }
+
+    @Override
+    public Object getAttribute(String name) throws AttributeNotFoundException {
+        Object value = snapshot().get(name);
+        if (value == null) throw new AttributeNotFoundException(name);
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+        Map<String, Object> values = snapshot();
+        AttributeList list = new AttributeList();
+        for (String name : names) {
+            if (values.containsKey(name)) list.add(new Attribute(name, values.get(name)));
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) { return new AttributeList(); }
+
+    @Override
+    public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(action));
+    }
+
+    // Natives and modules appear as they are first used, so the attribute
+    // list is rebuilt each time it is asked for.
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (String name : snapshot().keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, "java.lang.Long", name, true, false, false));
+        }
+        return new MBeanInfo(Metrics.class.getName(), "JIHLL runtime counters",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+}
@@ -0,0 +1,118 @@
+package com.jihll;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Module registry, keyed by canonical path. Compiled chunks are shared by every
+// copy of a Globals environment and reused until the file's modification time
+// or size changes; each environment runs a module at most once, so repeated
+// imports (from a loop, a function or several modules) are no-ops.
+class Modules {
+    private static final class Module {
+        final Object code; // a Chunk, or a Node.Body under the AST engine; null if the last compile failed
+        final FileTime modified;
+        final long size;
+        Module(Object code, FileTime modified, long size) { this.code = code; this.modified = modified; this.size = size; }
+    }
+
+    private final Map<Path, Module> compiled;
+    // Copy-on-write: shared with copies until either side imports something new.
+    private Set<Path> loaded;
+    private boolean loadedShared;
+    // Modules whose top-level code is running, outermost first.
+    private final List<Path> importing = new ArrayList<>();
+
+    Modules() {
+        this.compiled = new HashMap<>();
+        this.loaded = new HashSet<>();
+    }
+
+    private Modules(Modules parent) {
+        this.compiled = parent.compiled;
+        this.loaded = parent.loaded;
+        this.loadedShared = parent.loadedShared = true;
+    }
+
+    Modules copy() { return new Modules(this); }
+
+    static Path resolve(String filename) {
+        try {
+            return Paths.get(filename).toRealPath();
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot import '" + filename + "': file not found");
+        }
+    }
+
+    // Code to run for an import, or null if this environment already ran it.
+    // The caller runs it and then calls exit().
+    Object enter(Path path, Globals globals) throws IOException {
+        if (loaded.contains(path)) return null;
+        int cycle = importing.indexOf(path);
+        if (cycle != -1) {
+            StringBuilder chain = new StringBuilder();
+            for (Path p : importing.subList(cycle, importing.size())) chain.append(p.getFileName()).append(" -> ");
+            throw new RuntimeException("Import cycle: " + chain + path.getFileName());
+        }
+        Object code = compile(path, globals);
+        importing.add(path);
+        return code;
+    }
+
+    void exit(Path path, boolean completed) {
+        importing.remove(importing.size() - 1);
+        if (!completed) return;
+        if (loadedShared) { loaded = new HashSet<>(loaded); loadedShared = false; }
+        loaded.add(path);
+    }
+
+    // Compiles for whichever engine is selected; code compiled for the other
+    // engine counts as stale.
+    Object compile(Path path, Globals globals) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        synchronized (compiled) {
+            Module module = compiled.get(path);
+            if (module != null && module.code != null && unchanged(module, attributes)
+                    && (module.code instanceof Node.Body) == TreeCompiler.enabled) return module.code;
+        }
+        Object code = null;
+        try {
+            code = TreeCompiler.enabled ? TreeCompiler.load(path, globals) : ChunkFile.load(path, globals);
+            if (Metrics.ENABLED && code instanceof Chunk) Metrics.module(path.toString(), (Chunk) code);
+            return code;
+        } finally {
+            // Failed compiles are recorded too, so --watch notices when they are fixed.
+            synchronized (compiled) { compiled.put(path, new Module(code, attributes.lastModifiedTime(), attributes.size())); }
+        }
+    }
+
+    // True once any compiled module has been edited or removed since it was compiled.
+    boolean changed() {
+        List<Map.Entry<Path, Module>> modules;
+        synchronized (compiled) { modules = new ArrayList<>(compiled.entrySet()); }
+        for (Map.Entry<Path, Module> entry : modules) {
+            try {
+                if (!unchanged(entry.getValue(), Files.readAttributes(entry.getKey(), BasicFileAttributes.class))) return true;
+            } catch (NoSuchFileException e) {
+                return true;
+            } catch (IOException e) {
+                // Unreadable for now; check again on the next poll.
+            }
+        }
+        return false;
+    }
+
+    private static boolean unchanged(Module module, BasicFileAttributes attributes) {
+        return module.modified.equals(attributes.lastModifiedTime()) && module.size == attributes.size();
+    }
+}
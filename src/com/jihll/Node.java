@@ -0,0 +1,683 @@
+package com.jihll;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Executable tree for the AST engine (--engine ast). TreeCompiler turns the
+// parser's Stmt/Expr tree into these nodes with every name already resolved:
+// locals to frame slots, globals to Globals slots, properties to inline
+// caches. Each node runs itself, so there is no instruction decoding, and the
+// node at a given position never changes class, so the JIT sees monomorphic
+// calls it can inline.
+//
+// Statements return NEXT to fall through to the next statement; any other
+// value is a 'return' on its way out of the function. Numbers move between
+// nodes unboxed through executeNumber, which throws UnexpectedResult when the
+// value turns out not to be a number; nodes that speculate on numbers switch
+// to their generic path the first time that happens.
+abstract class Node {
+    static final Object NEXT = new Object();
+
+    abstract Object execute(Frame frame);
+
+    double executeNumber(Frame frame) throws UnexpectedResult {
+        Object value = execute(frame);
+        if (value instanceof Double) return (Double) value;
+        throw new UnexpectedResult(value);
+    }
+
+    boolean executeCondition(Frame frame) { return !isFalsey(execute(frame)); }
+
+    static final class UnexpectedResult extends Exception {
+        private static final long serialVersionUID = 1L;
+        final Object value;
+        UnexpectedResult(Object value) { super(null, null, false, false); this.value = value; }
+    }
+
+    // Locals of one call. As on the VM stack, numbers live unboxed in
+    // 'numbers' and their 'values' slot holds the NUMBER tag.
+    static final class Frame {
+        private static final Object NUMBER = new Object();
+        final Object[] values;
+        final double[] numbers;
+        final Globals globals;
+
+        Frame(int size, Globals globals) {
+            this.values = new Object[size];
+            this.numbers = new double[size];
+            this.globals = globals;
+        }
+
+        Object get(int slot) {
+            Object value = values[slot];
+            return value == NUMBER ? (Object) numbers[slot] : value;
+        }
+        void set(int slot, Object value) {
+            if (value instanceof Double) { numbers[slot] = (Double) value; value = NUMBER; }
+            values[slot] = value;
+        }
+        void setNumber(int slot, double value) {
+            numbers[slot] = value;
+            values[slot] = NUMBER;
+        }
+    }
+
+    // A script, module or function body and the number of local slots it needs.
+    static final class Body {
+        final Node code;
+        final int frameSize;
+        Body(Node code, int frameSize) { this.code = code; this.frameSize = frameSize; }
+
+        Object run(Frame frame) {
+            Object result = code.execute(frame);
+            return result == NEXT ? null : result;
+        }
+    }
+
+    static boolean isFalsey(Object o) { return o == null || (o instanceof Boolean && !(Boolean) o) || (o instanceof Double && (Double) o == 0.0); }
+
+    static double toDouble(Object a) {
+        if (a instanceof Double) return (Double) a;
+        if (a instanceof Integer) return ((Integer) a).doubleValue();
+        throw new RuntimeException("Expected number");
+    }
+
+    static Object add(Object a, Object b) {
+        if (ConcatString.isString(a) || ConcatString.isString(b)) return ConcatString.concat(a, b);
+        return toDouble(a) + toDouble(b);
+    }
+
+    // ---- Calls ----
+
+    // The Java stack is this engine's call stack, so running out of it is the
+    // script's stack overflow.
+    static Object invoke(JihllFunction fn, Frame frame) {
+        try {
+            return fn.body.run(frame);
+        } catch (StackOverflowError e) {
+            throw new RuntimeException("Stack Overflow");
+        }
+    }
+
+    // Calls any callable value with already evaluated arguments. Parameters
+    // without an argument are null; extra arguments are dropped.
+    static Object call(Object callee, Object[] args, Globals globals) {
+        if (callee instanceof JihllFunction) {
+            JihllFunction fn = (JihllFunction) callee;
+            Frame frame = new Frame(fn.body.frameSize, globals);
+            for (int i = 0; i < args.length && i < fn.arity; i++) frame.set(i, args[i]);
+            return invoke(fn, frame);
+        } else if (callee instanceof JihllBoundMethod) {
+            JihllBoundMethod bound = (JihllBoundMethod) callee;
+            return callMethod(bound.method, bound.receiver, args, globals);
+        } else if (callee instanceof JihllClass) {
+            JihllClass klass = (JihllClass) callee;
+            JihllInstance instance = new JihllInstance(klass);
+            JihllFunction init = klass.findMethod("init");
+            if (init != null) callMethod(init, instance, args, globals);
+            return instance;
+        } else if (callee instanceof NativeMethod) {
+            ConcatString.flatten(args);
+            return ((NativeMethod) callee).invoke(args);
+        }
+        throw new RuntimeException("Can only call functions and classes.");
+    }
+
+    private static Object callMethod(JihllFunction method, JihllInstance receiver, Object[] args, Globals globals) {
+        Frame frame = new Frame(method.body.frameSize, globals);
+        frame.values[0] = receiver;
+        for (int i = 0; i < args.length && i < method.arity; i++) frame.set(i + 1, args[i]);
+        return invoke(method, frame);
+    }
+
+    static Object[] evaluate(Node[] nodes, Frame frame) {
+        Object[] values = new Object[nodes.length];
+        for (int i = 0; i < nodes.length; i++) values[i] = nodes[i].execute(frame);
+        return values;
+    }
+
+    // Evaluates arguments straight into the callee's frame, parameters
+    // starting at slot 'first'. Arguments that have only ever been numbers
+    // are passed unboxed; extra arguments are evaluated and dropped.
+    static void pass(Node[] arguments, boolean[] boxed, Frame frame, Frame callee, int first, int arity) {
+        for (int i = 0; i < arguments.length; i++) {
+            Node argument = arguments[i];
+            if (i >= arity) { argument.execute(frame); continue; }
+            if (!boxed[i]) {
+                try {
+                    callee.setNumber(first + i, argument.executeNumber(frame));
+                } catch (UnexpectedResult e) {
+                    boxed[i] = true;
+                    callee.set(first + i, e.value);
+                }
+                continue;
+            }
+            callee.set(first + i, argument.execute(frame));
+        }
+    }
+
+    static final class Call extends Node {
+        final Node callee;
+        final Node[] arguments;
+        final boolean[] boxed;
+        Call(Node callee, Node[] arguments) { this.callee = callee; this.arguments = arguments; this.boxed = new boolean[arguments.length]; }
+
+        Object execute(Frame frame) {
+            Object target = callee.execute(frame);
+            if (target instanceof JihllFunction) {
+                JihllFunction fn = (JihllFunction) target;
+                Frame callFrame = new Frame(fn.body.frameSize, frame.globals);
+                pass(arguments, boxed, frame, callFrame, 0, fn.arity);
+                return invoke(fn, callFrame);
+            }
+            return call(target, evaluate(arguments, frame), frame.globals);
+        }
+    }
+
+    // object.name(args): a method call without creating a bound method.
+    static final class Invoke extends Node {
+        final Node object;
+        final String name;
+        final Node[] arguments;
+        final boolean[] boxed;
+        final InlineCache cache = new InlineCache();
+        Invoke(Node object, String name, Node[] arguments) {
+            this.object = object; this.name = name; this.arguments = arguments; this.boxed = new boolean[arguments.length];
+        }
+
+        Object execute(Frame frame) {
+            Object receiver = object.execute(frame);
+            if (!(receiver instanceof JihllInstance)) {
+                evaluate(arguments, frame);
+                throw new RuntimeException("Only instances have properties.");
+            }
+            JihllInstance inst = (JihllInstance) receiver;
+            InlineCache.Entry entry = cache.lookup(inst.shape);
+            if (entry == null) {
+                try {
+                    entry = VM.resolveGet(cache, inst, name);
+                } catch (RuntimeException e) {
+                    evaluate(arguments, frame);
+                    throw e;
+                }
+            }
+            if (entry.method == null) return call(inst.fields[entry.slot], evaluate(arguments, frame), frame.globals);
+            Frame callFrame = new Frame(entry.method.body.frameSize, frame.globals);
+            callFrame.values[0] = inst;
+            pass(arguments, boxed, frame, callFrame, 1, entry.method.arity);
+            return invoke(entry.method, callFrame);
+        }
+    }
+
+    // Runs the call on the scheduler against a snapshot of the globals.
+    static final class Spawn extends Node {
+        final Node callee;
+        final Node[] arguments;
+        Spawn(Node callee, Node[] arguments) { this.callee = callee; this.arguments = arguments; }
+
+        Object execute(Frame frame) {
+            Object target = callee.execute(frame);
+            Object[] args = evaluate(arguments, frame);
+            JihllTask task = new JihllTask();
+            Globals taskGlobals = frame.globals.copy();
+            Scheduler.submit(() -> {
+                try { task.complete(call(target, args, taskGlobals)); }
+                catch (RuntimeException e) { task.fail(e); }
+            });
+            return task;
+        }
+    }
+
+    // ---- Statements ----
+
+    static final class Block extends Node {
+        final Node[] statements;
+        Block(Node[] statements) { this.statements = statements; }
+
+        Object execute(Frame frame) {
+            for (Node statement : statements) {
+                Object result = statement.execute(frame);
+                if (result != NEXT) return result;
+            }
+            return NEXT;
+        }
+    }
+
+    static final class ExpressionStatement extends Node {
+        final Node expression;
+        ExpressionStatement(Node expression) { this.expression = expression; }
+        Object execute(Frame frame) { expression.execute(frame); return NEXT; }
+    }
+
+    static final class Print extends Node {
+        final Node expression;
+        Print(Node expression) { this.expression = expression; }
+        Object execute(Frame frame) { System.out.println(expression.execute(frame)); return NEXT; }
+    }
+
+    static final class Return extends Node {
+        final Node value;
+        Return(Node value) { this.value = value; }
+        Object execute(Frame frame) { return value.execute(frame); }
+    }
+
+    static final class If extends Node {
+        final Node condition;
+        final Node thenBranch;
+        final Node elseBranch;
+        If(Node condition, Node thenBranch, Node elseBranch) {
+            this.condition = condition; this.thenBranch = thenBranch; this.elseBranch = elseBranch;
+        }
+
+        Object execute(Frame frame) {
+            if (condition.executeCondition(frame)) return thenBranch.execute(frame);
+            return elseBranch != null ? elseBranch.execute(frame) : NEXT;
+        }
+    }
+
+    static final class While extends Node {
+        final Node condition;
+        final Node body;
+        While(Node condition, Node body) { this.condition = condition; this.body = body; }
+
+        Object execute(Frame frame) {
+            while (condition.executeCondition(frame)) {
+                Object result = body.execute(frame);
+                if (result != NEXT) return result;
+            }
+            return NEXT;
+        }
+    }
+
+    // The error message goes to the catch variable's slot, as in the VM.
+    static final class Try extends Node {
+        final Node body;
+        final int slot;
+        final Node handler;
+        Try(Node body, int slot, Node handler) { this.body = body; this.slot = slot; this.handler = handler; }
+
+        Object execute(Frame frame) {
+            try {
+                return body.execute(frame);
+            } catch (RuntimeException e) {
+                if (Metrics.ENABLED) Metrics.exceptionsCaught.increment();
+                frame.set(slot, e.getMessage());
+                return handler.execute(frame);
+            }
+        }
+    }
+
+    // Binds a global to a value created at compile time (a function declaration).
+    static final class Define extends Node {
+        final int slot;
+        final Object value;
+        Define(int slot, Object value) { this.slot = slot; this.value = value; }
+        Object execute(Frame frame) { frame.globals.set(slot, value); return NEXT; }
+    }
+
+    static final class ClassDeclaration extends Node {
+        final String name;
+        final int slot;
+        final JihllFunction[] methods;
+        ClassDeclaration(String name, int slot, JihllFunction[] methods) { this.name = name; this.slot = slot; this.methods = methods; }
+
+        Object execute(Frame frame) {
+            JihllClass klass = new JihllClass(name);
+            for (JihllFunction method : methods) klass.methods.put(method.name, method);
+            frame.globals.set(slot, klass);
+            return NEXT;
+        }
+    }
+
+    // Runs a module's top level in a frame of its own, once per environment.
+    static final class Import extends Node {
+        final Node file;
+        Import(Node file) { this.file = file; }
+
+        Object execute(Frame frame) {
+            Globals globals = frame.globals;
+            Path path = Modules.resolve(file.execute(frame).toString());
+            Body module;
+            try {
+                module = (Body) globals.modules.enter(path, globals);
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+            if (module == null) return NEXT;
+            if (Metrics.ENABLED) Metrics.modulesImported.increment();
+            boolean completed = false;
+            try {
+                module.run(new Frame(module.frameSize, globals));
+                completed = true;
+            } finally {
+                globals.modules.exit(path, completed);
+            }
+            return NEXT;
+        }
+    }
+
+    // ---- Values and variables ----
+
+    static final class Constant extends Node {
+        final Object value;
+        Constant(Object value) { this.value = value; }
+        Object execute(Frame frame) { return value; }
+    }
+
+    static final class NumberConstant extends Node {
+        final double value;
+        NumberConstant(double value) { this.value = value; }
+        Object execute(Frame frame) { return value; }
+        @Override double executeNumber(Frame frame) { return value; }
+        @Override boolean executeCondition(Frame frame) { return value != 0.0; }
+    }
+
+    static final class Local extends Node {
+        final int slot;
+        Local(int slot) { this.slot = slot; }
+
+        Object execute(Frame frame) { return frame.get(slot); }
+
+        @Override double executeNumber(Frame frame) throws UnexpectedResult {
+            Object value = frame.values[slot];
+            if (value == Frame.NUMBER) return frame.numbers[slot];
+            throw new UnexpectedResult(value);
+        }
+
+        @Override boolean executeCondition(Frame frame) {
+            Object value = frame.values[slot];
+            return value == Frame.NUMBER ? frame.numbers[slot] != 0.0 : !isFalsey(value);
+        }
+    }
+
+    // Stores numbers unboxed until the first non-number value comes along.
+    static final class SetLocal extends Node {
+        final int slot;
+        final Node value;
+        boolean generic;
+        SetLocal(int slot, Node value) { this.slot = slot; this.value = value; }
+
+        Object execute(Frame frame) {
+            if (!generic) {
+                try {
+                    double number = value.executeNumber(frame);
+                    frame.setNumber(slot, number);
+                    return number;
+                } catch (UnexpectedResult e) {
+                    generic = true;
+                    frame.set(slot, e.value);
+                    return e.value;
+                }
+            }
+            Object result = value.execute(frame);
+            frame.set(slot, result);
+            return result;
+        }
+    }
+
+    static final class Global extends Node {
+        final int slot;
+        Global(int slot) { this.slot = slot; }
+        Object execute(Frame frame) { return frame.globals.get(slot); }
+    }
+
+    static final class SetGlobal extends Node {
+        final int slot;
+        final Node value;
+        SetGlobal(int slot, Node value) { this.slot = slot; this.value = value; }
+
+        Object execute(Frame frame) {
+            Object result = value.execute(frame);
+            frame.globals.set(slot, result);
+            return result;
+        }
+    }
+
+    static final class GetProperty extends Node {
+        final Node object;
+        final String name;
+        final InlineCache cache = new InlineCache();
+        GetProperty(Node object, String name) { this.object = object; this.name = name; }
+
+        Object execute(Frame frame) {
+            Object value = object.execute(frame);
+            if (!(value instanceof JihllInstance)) throw new RuntimeException("Only instances have properties.");
+            JihllInstance inst = (JihllInstance) value;
+            InlineCache.Entry entry = cache.lookup(inst.shape);
+            if (entry == null) entry = VM.resolveGet(cache, inst, name);
+            return entry.method == null ? inst.fields[entry.slot] : new JihllBoundMethod(inst, entry.method);
+        }
+    }
+
+    static final class SetProperty extends Node {
+        final Node object;
+        final String name;
+        final Node value;
+        final InlineCache cache = new InlineCache();
+        SetProperty(Node object, String name, Node value) { this.object = object; this.name = name; this.value = value; }
+
+        Object execute(Frame frame) {
+            Object target = object.execute(frame);
+            Object result = value.execute(frame);
+            if (!(target instanceof JihllInstance)) throw new RuntimeException("Only instances have fields.");
+            JihllInstance inst = (JihllInstance) target;
+            InlineCache.Entry entry = cache.lookup(inst.shape);
+            if (entry == null) entry = VM.resolveSet(cache, inst, name);
+            if (entry.transition == null) inst.fields[entry.slot] = result;
+            else inst.addField(entry.transition, result);
+            return result;
+        }
+    }
+
+    static final class ListLiteral extends Node {
+        final Node[] elements;
+        ListLiteral(Node[] elements) { this.elements = elements; }
+
+        Object execute(Frame frame) {
+            List<Object> list = new ArrayList<>(elements.length);
+            for (Node element : elements) list.add(ConcatString.flatten(element.execute(frame)));
+            return list;
+        }
+    }
+
+    static final class MapLiteral extends Node {
+        final Node[] keys;
+        final Node[] values;
+        MapLiteral(Node[] keys, Node[] values) { this.keys = keys; this.values = values; }
+
+        Object execute(Frame frame) {
+            Object[] k = new Object[keys.length], v = new Object[keys.length];
+            for (int i = 0; i < keys.length; i++) { k[i] = ConcatString.flatten(keys[i].execute(frame)); v[i] = ConcatString.flatten(values[i].execute(frame)); }
+            // Filled last to first like BUILD_MAP, so the first of two equal keys wins.
+            Map<Object, Object> map = new HashMap<>();
+            for (int i = keys.length - 1; i >= 0; i--) map.put(k[i], v[i]);
+            return map;
+        }
+    }
+
+    // ---- Operators ----
+
+    // '+' specializes on its first operands: numbers stay unboxed, strings
+    // concatenate directly, and any other mix falls back to the generic add.
+    static final class Add extends Node {
+        private static final int UNINITIALIZED = 0, NUMBERS = 1, STRINGS = 2, GENERIC = 3;
+        final Node left;
+        final Node right;
+        int state = UNINITIALIZED;
+        Add(Node left, Node right) { this.left = left; this.right = right; }
+
+        Object execute(Frame frame) {
+            switch (state) {
+                case NUMBERS: {
+                    double a;
+                    try {
+                        a = left.executeNumber(frame);
+                    } catch (UnexpectedResult e) {
+                        state = GENERIC;
+                        return add(e.value, right.execute(frame));
+                    }
+                    try {
+                        return a + right.executeNumber(frame);
+                    } catch (UnexpectedResult e) {
+                        state = GENERIC;
+                        return add(a, e.value);
+                    }
+                }
+                case STRINGS: {
+                    Object a = left.execute(frame);
+                    Object b = right.execute(frame);
+                    if (ConcatString.isString(a)) return ConcatString.concat(a, b);
+                    state = GENERIC;
+                    return add(a, b);
+                }
+                case GENERIC:
+                    return add(left.execute(frame), right.execute(frame));
+                default: {
+                    Object a = left.execute(frame);
+                    Object b = right.execute(frame);
+                    state = a instanceof Double && b instanceof Double ? NUMBERS : ConcatString.isString(a) ? STRINGS : GENERIC;
+                    return add(a, b);
+                }
+            }
+        }
+
+        @Override double executeNumber(Frame frame) throws UnexpectedResult {
+            if (state == NUMBERS) {
+                double a;
+                try {
+                    a = left.executeNumber(frame);
+                } catch (UnexpectedResult e) {
+                    state = GENERIC;
+                    throw new UnexpectedResult(add(e.value, right.execute(frame)));
+                }
+                try {
+                    return a + right.executeNumber(frame);
+                } catch (UnexpectedResult e) {
+                    state = GENERIC;
+                    throw new UnexpectedResult(add(a, e.value));
+                }
+            }
+            return super.executeNumber(frame);
+        }
+    }
+
+    // -, *, / and the comparisons, which only accept numbers.
+    abstract static class Arithmetic extends Node {
+        final Node left;
+        final Node right;
+        Arithmetic(Node left, Node right) { this.left = left; this.right = right; }
+
+        abstract double apply(double a, double b);
+
+        Object execute(Frame frame) { return executeNumber(frame); }
+
+        @Override double executeNumber(Frame frame) {
+            double a;
+            try {
+                a = left.executeNumber(frame);
+            } catch (UnexpectedResult e) {
+                Object b = right.execute(frame);
+                return apply(toDouble(e.value), toDouble(b));
+            }
+            try {
+                return apply(a, right.executeNumber(frame));
+            } catch (UnexpectedResult e) {
+                return apply(a, toDouble(e.value));
+            }
+        }
+    }
+
+    static final class Subtract extends Arithmetic {
+        Subtract(Node left, Node right) { super(left, right); }
+        double apply(double a, double b) { return a - b; }
+    }
+
+    static final class Multiply extends Arithmetic {
+        Multiply(Node left, Node right) { super(left, right); }
+        double apply(double a, double b) { return a * b; }
+    }
+
+    static final class Divide extends Arithmetic {
+        Divide(Node left, Node right) { super(left, right); }
+        double apply(double a, double b) { return a / b; }
+    }
+
+    // Comparisons produce 1 or 0 like the VM, but a condition tests them directly.
+    abstract static class Comparison extends Arithmetic {
+        Comparison(Node left, Node right) { super(left, right); }
+
+        abstract boolean test(double a, double b);
+
+        double apply(double a, double b) { return test(a, b) ? 1.0 : 0.0; }
+
+        @Override boolean executeCondition(Frame frame) {
+            double a;
+            try {
+                a = left.executeNumber(frame);
+            } catch (UnexpectedResult e) {
+                Object b = right.execute(frame);
+                return test(toDouble(e.value), toDouble(b));
+            }
+            try {
+                return test(a, right.executeNumber(frame));
+            } catch (UnexpectedResult e) {
+                return test(a, toDouble(e.value));
+            }
+        }
+    }
+
+    static final class Less extends Comparison {
+        Less(Node left, Node right) { super(left, right); }
+        boolean test(double a, double b) { return a < b; }
+    }
+
+    static final class Greater extends Comparison {
+        Greater(Node left, Node right) { super(left, right); }
+        boolean test(double a, double b) { return a > b; }
+    }
+
+    static final class LessEqual extends Comparison {
+        LessEqual(Node left, Node right) { super(left, right); }
+        boolean test(double a, double b) { return a <= b; }
+    }
+
+    static final class GreaterEqual extends Comparison {
+        GreaterEqual(Node left, Node right) { super(left, right); }
+        boolean test(double a, double b) { return a >= b; }
+    }
+
+    // == and != with Objects.equals semantics; numbers compare unboxed until
+    // the first non-number operand.
+    static final class Equal extends Node {
+        final Node left;
+        final Node right;
+        final boolean negate;
+        boolean generic;
+        Equal(Node left, Node right, boolean negate) { this.left = left; this.right = right; this.negate = negate; }
+
+        Object execute(Frame frame) { return executeCondition(frame); }
+
+        @Override boolean executeCondition(Frame frame) {
+            if (!generic) {
+                double a;
+                try {
+                    a = left.executeNumber(frame);
+                } catch (UnexpectedResult e) {
+                    generic = true;
+                    return ConcatString.equal(e.value, right.execute(frame)) != negate;
+                }
+                try {
+                    return (Double.doubleToLongBits(a) == Double.doubleToLongBits(right.executeNumber(frame))) != negate;
+                } catch (UnexpectedResult e) {
+                    generic = true;
+                    return ConcatString.equal(a, e.value) != negate;
+                }
+            }
+            return ConcatString.equal(left.execute(frame), right.execute(frame)) != negate;
+        }
+    }
+}
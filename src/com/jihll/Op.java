@@ -29,9 +29,62 @@ class Op {
     static final int GET_PROPERTY = 25;
     static final int SET_PROPERTY = 26;
     static final int METHOD = 27;
-    static final int TRY_ENTER = 28;
-    static final int TRY_EXIT = 29;
     static final int LESS_EQUAL = 30;
     static final int GREATER_EQUAL = 31;
     static final int NOT_EQUAL = 32;
+    static final int INVOKE = 33;
+
+    // Superinstructions produced by Peephole.
+    static final int ADD_LOCAL_CONSTANT = 34;
+    static final int SUBTRACT_LOCAL_CONSTANT = 35;
+    static final int SET_GLOBAL_POP = 36;
+    static final int SET_LOCAL_POP = 37;
+    static final int JUMP_IF_NOT_LESS = 38;
+    static final int JUMP_IF_NOT_GREATER = 39;
+    static final int JUMP_IF_NOT_LESS_EQUAL = 40;
+    static final int JUMP_IF_NOT_GREATER_EQUAL = 41;
+    static final int JUMP_IF_NOT_EQUAL = 42;
+    static final int JUMP_IF_EQUAL = 43;
+
+    // Quickened forms, written over a generic opcode by the VM once it has
+    // seen the operand types at that site. Each takes the same operands as
+    // the generic instruction it stands in for.
+    static final int ADD_NUMBERS = 44;
+    static final int ADD_STRINGS = 45;
+    static final int JUMP_IF_NOT_LESS_NUMBERS = 46;
+    static final int JUMP_IF_NOT_GREATER_NUMBERS = 47;
+    static final int JUMP_IF_NOT_LESS_EQUAL_NUMBERS = 48;
+    static final int JUMP_IF_NOT_GREATER_EQUAL_NUMBERS = 49;
+    static final int CALL_NATIVE = 50;
+
+    // The generic instruction behind a quickened one; any other op unchanged.
+    static int generic(int op) {
+        switch (op) {
+            case ADD_NUMBERS: case ADD_STRINGS: return ADD;
+            case JUMP_IF_NOT_LESS_NUMBERS: return JUMP_IF_NOT_LESS;
+            case JUMP_IF_NOT_GREATER_NUMBERS: return JUMP_IF_NOT_GREATER;
+            case JUMP_IF_NOT_LESS_EQUAL_NUMBERS: return JUMP_IF_NOT_LESS_EQUAL;
+            case JUMP_IF_NOT_GREATER_EQUAL_NUMBERS: return JUMP_IF_NOT_GREATER_EQUAL;
+            case CALL_NATIVE: return CALL;
+            default: return op;
+        }
+    }
+
+    // Number of operand words following the opcode.
+    static int operands(int op) {
+        switch (generic(op)) {
+            case GET_PROPERTY: case SET_PROPERTY: case ADD_LOCAL_CONSTANT: case SUBTRACT_LOCAL_CONSTANT: return 2;
+            case INVOKE: return 3;
+            case CONSTANT: case DEFINE_GLOBAL: case GET_GLOBAL: case SET_GLOBAL: case CALL: case BUILD_LIST:
+            case SPAWN: case BUILD_MAP: case GET_LOCAL: case SET_LOCAL: case CLASS: case METHOD:
+            case SET_GLOBAL_POP: case SET_LOCAL_POP: return 1;
+            default: return isJump(op) ? 1 : 0;
+        }
+    }
+
+    // Jumps take a single offset operand, relative to the word after it.
+    static boolean isJump(int op) {
+        op = generic(op);
+        return op == JUMP || op == JUMP_IF_FALSE || (op >= JUMP_IF_NOT_LESS && op <= JUMP_IF_EQUAL);
+    }
 }
\ No newline at end of file
@@ -3,11 +3,22 @@ package com.jihll;
 import java.util.ArrayList;
 import java.util.List;
 
+// Recursive descent over tokens pulled from the Lexer. The parser looks at
+// most one token ahead and one behind, so it keeps the last few in a small
+// ring, as positions into the source; a Token is only made for one the
+// syntax tree holds on to (names, operators, keywords).
 class Parser {
-    private final List<Token> tokens;
+    private static final int RING = 4;
+
+    private final Lexer lexer;
+    private final TokenType[] types = new TokenType[RING];
+    private final int[] lines = new int[RING];
+    private final Object[] literals = new Object[RING];
+    private final String[] names = new String[RING];
     private int current = 0;
+    private int read = 0;
 
-    Parser(List<Token> tokens) { this.tokens = tokens; }
+    Parser(Lexer lexer) { this.lexer = lexer; }
 
     List<Stmt> parse() {
         List<Stmt> statements = new ArrayList<>();
@@ -18,21 +29,25 @@ class Parser {
     }
 
     private Stmt declaration() {
-        if (match(TokenType.CLASS)) return classDeclaration();
-        if (match(TokenType.FUN)) return functionDeclaration();
-        return statement();
+        int line = lineAt(current);
+        Stmt stmt;
+        if (match(TokenType.CLASS)) stmt = classDeclaration();
+        else if (match(TokenType.FUN)) stmt = functionDeclaration();
+        else stmt = statement();
+        stmt.line = line;
+        return stmt;
     }
 
     private Stmt classDeclaration() {
         Token name = consume(TokenType.IDENTIFIER, "Expect class name.");
-        consume(TokenType.COLON, "Expect ':' before class body.");
+        expect(TokenType.COLON, "Expect ':' before class body.");
         
         List<Stmt.Function> methods = new ArrayList<>();
         while (!check(TokenType.BLOCK_DOT) && !isAtEnd()) {
-            consume(TokenType.FUN, "Expect 'fun' in class body.");
+            expect(TokenType.FUN, "Expect 'fun' in class body.");
             methods.add((Stmt.Function) functionDeclaration());
         }
-        consume(TokenType.BLOCK_DOT, "Expect '.' after class body.");
+        expect(TokenType.BLOCK_DOT, "Expect '.' after class body.");
         return new Stmt.Class(name, methods);
     }
 
@@ -44,7 +59,7 @@ class Parser {
                 parameters.add(consume(TokenType.IDENTIFIER, "Expect parameter name."));
             } while (match(TokenType.COMMA));
         }
-        consume(TokenType.COLON, "Expect ':' before function body.");
+        expect(TokenType.COLON, "Expect ':' before function body.");
         List<Stmt> body = parseBlock();
         return new Stmt.Function(name, parameters, body);
     }
@@ -62,7 +77,7 @@ class Parser {
     
     // FIX: tryStatement now manually parses until CATCH, instead of using parseBlock()
     private Stmt tryStatement() {
-        consume(TokenType.COLON, "Expect ':' after try.");
+        expect(TokenType.COLON, "Expect ':' after try.");
         
         List<Stmt> tryStmts = new ArrayList<>();
         // Keep parsing statements until we hit 'catch' or EOF
@@ -71,9 +86,9 @@ class Parser {
         }
         Stmt tryBlock = new Stmt.Block(tryStmts);
         
-        consume(TokenType.CATCH, "Expect 'catch' after try block.");
+        expect(TokenType.CATCH, "Expect 'catch' after try block.");
         Token errorVar = consume(TokenType.IDENTIFIER, "Expect error variable name.");
-        consume(TokenType.COLON, "Expect ':' after catch.");
+        expect(TokenType.COLON, "Expect ':' after catch.");
         
         // The catch block DOES end with a dot, so we can use parseBlock() here
         Stmt catchBlock = new Stmt.Block(parseBlock());
@@ -108,7 +123,7 @@ class Parser {
 
     private Stmt ifStatement() {
         Expr condition = expression();
-        consume(TokenType.COLON, "Expect ':' after if condition.");
+        expect(TokenType.COLON, "Expect ':' after if condition.");
         
         List<Stmt> thenStmts = new ArrayList<>();
         List<Stmt> elseStmts = null;
@@ -118,19 +133,19 @@ class Parser {
         }
 
         if (match(TokenType.ELSE)) {
-            consume(TokenType.COLON, "Expect ':' after else.");
+            expect(TokenType.COLON, "Expect ':' after else.");
             elseStmts = new ArrayList<>();
             while (!check(TokenType.BLOCK_DOT) && !isAtEnd()) {
                 elseStmts.add(declaration());
             }
         }
-        consume(TokenType.BLOCK_DOT, "Expect '.' after if block.");
+        expect(TokenType.BLOCK_DOT, "Expect '.' after if block.");
         return new Stmt.If(condition, new Stmt.Block(thenStmts), (elseStmts != null) ? new Stmt.Block(elseStmts) : null);
     }
     
     private Stmt whileStatement() {
         Expr condition = expression();
-        consume(TokenType.COLON, "Expect ':' after while condition.");
+        expect(TokenType.COLON, "Expect ':' after while condition.");
         List<Stmt> body = parseBlock();
         return new Stmt.While(condition, new Stmt.Block(body));
     }
@@ -140,7 +155,7 @@ class Parser {
         while (!check(TokenType.BLOCK_DOT) && !isAtEnd()) {
             statements.add(declaration());
         }
-        consume(TokenType.BLOCK_DOT, "Expect '.' to close block.");
+        expect(TokenType.BLOCK_DOT, "Expect '.' to close block.");
         return statements;
     }
 
@@ -181,7 +196,7 @@ class Parser {
 
     private Expr term() {
         Expr expr = factor();
-        while (match(TokenType.PLUS, TokenType.MINUS)) {
+        while (match(TokenType.PLUS) || match(TokenType.MINUS)) {
             Token operator = previous();
             Expr right = factor();
             expr = new Expr.Binary(expr, operator, right);
@@ -191,7 +206,7 @@ class Parser {
 
     private Expr factor() {
         Expr expr = call(); 
-        while (match(TokenType.STAR, TokenType.SLASH)) {
+        while (match(TokenType.STAR) || match(TokenType.SLASH)) {
             Token operator = previous();
             Expr right = call();
             expr = new Expr.Binary(expr, operator, right);
@@ -208,11 +223,11 @@ class Parser {
                 if (!check(TokenType.RIGHT_PAREN)) {
                     do { args.add(expression()); } while (match(TokenType.COMMA));
                 }
-                consume(TokenType.RIGHT_PAREN, "Expect ')' after arguments.");
+                expect(TokenType.RIGHT_PAREN, "Expect ')' after arguments.");
                 expr = new Expr.Call(expr, args);
             } 
-            else if (check(TokenType.DOT) && peekNext().type == TokenType.IDENTIFIER) {
-                advance(); // Consume dot
+            else if (check(TokenType.DOT) && typeAt(current + 1) == TokenType.IDENTIFIER) {
+                current++; // Consume dot
                 Token name = consume(TokenType.IDENTIFIER, "Expect property name after '.'.");
                 expr = new Expr.Get(expr, name);
             }
@@ -227,16 +242,17 @@ class Parser {
         if (match(TokenType.FALSE)) return new Expr.Literal(false);
         if (match(TokenType.TRUE)) return new Expr.Literal(true);
         if (match(TokenType.THIS)) return new Expr.This(previous());
-        if (match(TokenType.NUMBER)) return new Expr.Literal(previous().literal);
-        if (match(TokenType.STRING)) return new Expr.Literal(previous().literal);
+        if (match(TokenType.NUMBER)) return new Expr.Literal(literalAt(current - 1));
+        if (match(TokenType.STRING)) return new Expr.Literal(literalAt(current - 1));
         if (match(TokenType.IDENTIFIER)) return new Expr.Variable(previous());
+        if (match(TokenType.SPAWN)) return new Expr.Spawn(call());
 
         if (match(TokenType.LEFT_BRACKET)) {
             List<Expr> elements = new ArrayList<>();
             if (!check(TokenType.RIGHT_BRACKET)) {
                 do { elements.add(expression()); } while (match(TokenType.COMMA));
             }
-            consume(TokenType.RIGHT_BRACKET, "Expect ']'");
+            expect(TokenType.RIGHT_BRACKET, "Expect ']'");
             return new Expr.Array(elements);
         }
 
@@ -250,25 +266,30 @@ class Parser {
                     } else {
                         keys.add(expression());
                     }
-                    consume(TokenType.COLON, "Expect ':' after map key.");
+                    expect(TokenType.COLON, "Expect ':' after map key.");
                     values.add(expression());
                 } while (match(TokenType.COMMA));
             }
-            consume(TokenType.RIGHT_BRACE, "Expect '}'");
+            expect(TokenType.RIGHT_BRACE, "Expect '}'");
             return new Expr.MapLiteral(keys, values);
         }
 
         if (match(TokenType.LEFT_PAREN)) {
             Expr expr = expression();
-            consume(TokenType.RIGHT_PAREN, "Expect ')'");
+            expect(TokenType.RIGHT_PAREN, "Expect ')'");
             return expr;
         }
         throw new RuntimeException("Expect expression.");
     }
 
+    private boolean match(TokenType type) {
+        if (!check(type)) return false;
+        current++;
+        return true;
+    }
     private boolean match(TokenType... types) {
         for (TokenType type : types) {
-            if (check(type)) { advance(); return true; }
+            if (match(type)) return true;
         }
         return false;
     }
@@ -276,15 +297,36 @@ class Parser {
         if (check(type)) return advance();
         throw new RuntimeException(message);
     }
-    private boolean check(TokenType type) { return !isAtEnd() && peek().type == type; }
-    
-    private Token peekNext() {
-        if (current + 1 >= tokens.size()) return tokens.get(tokens.size() - 1);
-        return tokens.get(current + 1);
+    // consume, for a token the tree doesn't keep, so no Token is made.
+    private void expect(TokenType type, String message) {
+        if (!check(type)) throw new RuntimeException(message);
+        current++;
     }
-    
+    private boolean check(TokenType type) { return type != TokenType.EOF && typeAt(current) == type; }
+
     private Token advance() { if (!isAtEnd()) current++; return previous(); }
-    private boolean isAtEnd() { return peek().type == TokenType.EOF; }
-    private Token peek() { return tokens.get(current); }
-    private Token previous() { return tokens.get(current - 1); }
+    private boolean isAtEnd() { return typeAt(current) == TokenType.EOF; }
+    private Token previous() {
+        int slot = slot(current - 1);
+        TokenType type = types[slot];
+        String text = names[slot] != null ? names[slot] : Lexer.text(type);
+        return new Token(type, text, literals[slot], lines[slot]);
+    }
+
+    // Token i of the script, reading up to it if need be. Only tokens from
+    // current - 1 on are still in the ring; past the end, every token is EOF.
+    private int slot(int i) {
+        for (; read <= i; read++) {
+            int slot = read & (RING - 1);
+            TokenType type = lexer.next();
+            types[slot] = type;
+            lines[slot] = lexer.tokenLine;
+            literals[slot] = lexer.literal;
+            names[slot] = type == TokenType.IDENTIFIER ? lexer.name() : null;
+        }
+        return i & (RING - 1);
+    }
+    private TokenType typeAt(int i) { return types[i < read ? i & (RING - 1) : slot(i)]; }
+    private int lineAt(int i) { return lines[slot(i)]; }
+    private Object literalAt(int i) { return literals[slot(i)]; }
 }
\ No newline at end of file
@@ -0,0 +1,188 @@
+package com.jihll;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Rewrites a finished chunk. Common instruction sequences are fused into
+// superinstructions, and function bodies are moved out of line so the JUMP
+// that skipped each body disappears. Jump offsets, function addresses and the
+// exception table and line table are rebuilt for the new layout. Disable with --no-peephole
+// or -Djihll.peephole=false to compare against the plain code.
+class Peephole {
+    static boolean enabled = !"false".equals(System.getProperty("jihll.peephole"));
+
+    private static final class Insn {
+        final int pc;
+        int op;
+        int[] args;
+        int target = -1;
+        int newPc;
+        int line;
+        Insn(int pc, int op, int[] args) { this.pc = pc; this.op = op; this.args = args; }
+        int size() { return 1 + args.length; }
+    }
+
+    private final Chunk chunk;
+    private final Map<Integer, Insn> byPc = new HashMap<>();
+    private final Set<Integer> labels = new HashSet<>();
+    // Function body start -> end, for bodies skipped by a JUMP.
+    private final Map<Integer, Integer> bodies = new HashMap<>();
+
+    private Peephole(Chunk chunk) { this.chunk = chunk; }
+
+    static void optimize(Chunk chunk) { new Peephole(chunk).run(); }
+
+    private void run() {
+        decode();
+        List<Insn> layout = new ArrayList<>();
+        List<Insn> dropped = new ArrayList<>();
+        emit(0, chunk.count, layout, dropped);
+        List<Insn> fused = fuse(layout);
+        encode(fused, dropped);
+    }
+
+    private void decode() {
+        for (int pc = 0; pc < chunk.count; ) {
+            int op = chunk.code[pc];
+            int[] args = new int[Op.operands(op)];
+            for (int i = 0; i < args.length; i++) args[i] = chunk.code[pc + 1 + i];
+            Insn insn = new Insn(pc, op, args);
+            insn.line = chunk.lineAt(pc);
+            if (Op.isJump(op)) {
+                insn.target = pc + insn.size() + args[0];
+                labels.add(insn.target);
+            }
+            byPc.put(pc, insn);
+            pc += insn.size();
+        }
+        for (Chunk.Handler handler : chunk.handlers) {
+            labels.add(handler.start); labels.add(handler.end); labels.add(handler.target);
+        }
+        for (int i = 0; i < chunk.constantCount; i++) {
+            if (!(chunk.constants[i] instanceof JihllFunction)) continue;
+            JihllFunction fn = (JihllFunction) chunk.constants[i];
+            if (fn.chunk != chunk) continue;
+            labels.add(fn.address);
+            Insn skip = byPc.get(fn.address - 2);
+            if (skip != null && skip.op == Op.JUMP && skip.target > fn.address) bodies.put(fn.address, skip.target);
+        }
+    }
+
+    // Lays out [start, end) in order, leaving out nested function bodies and
+    // the jumps over them; each body is laid out after the code containing it.
+    private void emit(int start, int end, List<Insn> out, List<Insn> dropped) {
+        List<Integer> nested = new ArrayList<>();
+        for (int pc = start; pc < end; ) {
+            Insn insn = byPc.get(pc);
+            Integer bodyEnd = insn.op == Op.JUMP ? bodies.get(pc + insn.size()) : null;
+            if (bodyEnd != null && bodyEnd == insn.target) {
+                dropped.add(insn);
+                nested.add(pc + insn.size());
+                pc = bodyEnd;
+                continue;
+            }
+            out.add(insn);
+            pc += insn.size();
+        }
+        for (int body : nested) emit(body, bodies.get(body), out, dropped);
+    }
+
+    private List<Insn> fuse(List<Insn> in) {
+        List<Insn> out = new ArrayList<>();
+        for (int i = 0; i < in.size(); i++) {
+            Insn a = in.get(i);
+            Insn b = next(in, i + 1);
+            Insn c = b == null ? null : next(in, i + 2);
+            if (a.op == Op.GET_LOCAL && b != null && b.op == Op.CONSTANT && c != null
+                    && (c.op == Op.ADD || c.op == Op.SUBTRACT)) {
+                a.op = c.op == Op.ADD ? Op.ADD_LOCAL_CONSTANT : Op.SUBTRACT_LOCAL_CONSTANT;
+                a.args = new int[] { a.args[0], b.args[0] };
+                i += 2;
+            } else if (b != null && b.op == Op.JUMP_IF_FALSE && branchFor(a.op) != -1) {
+                a.op = branchFor(a.op);
+                a.args = b.args;
+                a.target = b.target;
+                i += 1;
+            } else if (b != null && b.op == Op.POP && (a.op == Op.SET_GLOBAL || a.op == Op.SET_LOCAL)) {
+                a.op = a.op == Op.SET_GLOBAL ? Op.SET_GLOBAL_POP : Op.SET_LOCAL_POP;
+                i += 1;
+            }
+            out.add(a);
+        }
+        return out;
+    }
+
+    // The following instruction, unless control can also arrive there from elsewhere.
+    private Insn next(List<Insn> in, int i) {
+        if (i >= in.size()) return null;
+        Insn insn = in.get(i);
+        if (labels.contains(insn.pc) || insn.pc != in.get(i - 1).pc + in.get(i - 1).size()) return null;
+        return insn;
+    }
+
+    private static int branchFor(int op) {
+        switch (op) {
+            case Op.LESS: return Op.JUMP_IF_NOT_LESS;
+            case Op.GREATER: return Op.JUMP_IF_NOT_GREATER;
+            case Op.LESS_EQUAL: return Op.JUMP_IF_NOT_LESS_EQUAL;
+            case Op.GREATER_EQUAL: return Op.JUMP_IF_NOT_GREATER_EQUAL;
+            case Op.EQUAL: return Op.JUMP_IF_NOT_EQUAL;
+            case Op.NOT_EQUAL: return Op.JUMP_IF_EQUAL;
+            default: return -1;
+        }
+    }
+
+    private void encode(List<Insn> out, List<Insn> dropped) {
+        // Old pc -> new pc. Fused-away instructions are never labels, and a
+        // dropped jump maps to whatever now follows the code it used to end.
+        Map<Integer, Integer> moved = new HashMap<>();
+        int pc = 0;
+        for (Insn insn : out) {
+            insn.newPc = pc;
+            moved.put(insn.pc, pc);
+            pc += insn.size();
+        }
+        moved.put(chunk.count, pc);
+        for (Insn skip : dropped) moved.put(skip.pc, moved.get(skip.target));
+
+        int[] code = new int[pc];
+        for (Insn insn : out) {
+            code[insn.newPc] = insn.op;
+            for (int i = 0; i < insn.args.length; i++) code[insn.newPc + 1 + i] = insn.args[i];
+            if (Op.isJump(insn.op)) code[insn.newPc + 1] = moved.get(insn.target) - (insn.newPc + insn.size());
+        }
+
+        // A protected range may now be split or joined; cover exactly the
+        // instructions that came from it, keeping inner handlers first.
+        List<Chunk.Handler> handlers = new ArrayList<>();
+        for (Chunk.Handler handler : chunk.handlers) {
+            int start = -1, end = -1;
+            for (Insn insn : out) {
+                boolean covered = insn.pc >= handler.start && insn.pc < handler.end;
+                if (covered && start != -1 && insn.newPc == end) { end += insn.size(); continue; }
+                if (start != -1) { handlers.add(new Chunk.Handler(start, end, moved.get(handler.target), handler.depth)); start = -1; }
+                if (covered) { start = insn.newPc; end = insn.newPc + insn.size(); }
+            }
+            if (start != -1) handlers.add(new Chunk.Handler(start, end, moved.get(handler.target), handler.depth));
+        }
+
+        for (int i = 0; i < chunk.constantCount; i++) {
+            if (!(chunk.constants[i] instanceof JihllFunction)) continue;
+            JihllFunction fn = (JihllFunction) chunk.constants[i];
+            if (fn.chunk != chunk) continue;
+            chunk.constants[i] = new JihllFunction(fn.name, fn.arity, moved.get(fn.address), chunk);
+        }
+        // A fused instruction keeps the line of its first part.
+        chunk.lineCount = 0;
+        for (Insn insn : out) chunk.addLine(insn.newPc, insn.line);
+        chunk.lines = Arrays.copyOf(chunk.lines, 2 * chunk.lineCount);
+        chunk.code = code;
+        chunk.count = pc;
+        chunk.handlers = handlers.toArray(new Chunk.Handler[0]);
+    }
+}
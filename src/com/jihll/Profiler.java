@@ -0,0 +1,154 @@
+package com.jihll;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+
+// Sampling profiler for the bytecode VM (--profile or -Djihll.profile=true).
+// A timer thread advances 'tick' every INTERVAL microseconds; a VM notices the
+// change before its next instruction and records the instruction, its source
+// line and the functions on its call stack. Calls into functions are counted
+// exactly. At exit the totals go to stderr and the stacks, in the folded
+// format flame graph tools read, to FOLDED.
+//
+// ENABLED is read once, before any script runs, so when it is off the checks
+// in VM compile away. Tier 2 is switched off while profiling so every call
+// stays visible to the sampler. Time inside natives and blocked waits is not
+// sampled, and neither is code run on the AST engine.
+class Profiler {
+    static final boolean ENABLED = Boolean.getBoolean("jihll.profile");
+    static final long INTERVAL = Long.getLong("jihll.profile.interval", 1000);
+    static final String FOLDED = System.getProperty("jihll.profile.folded", "profile.folded");
+
+    static volatile int tick;
+
+    private static final Set<JihllFunction> functions = new HashSet<>();
+    private static final Map<String, Long> stacks = new HashMap<>();
+    private static final Map<String, Long> lines = new HashMap<>();
+    private static final long[] opcodes = new long[256];
+    private static long samples;
+
+    private Profiler() {}
+
+    static void start() {
+        Tier2.enabled = false;
+        Thread timer = new Thread(() -> {
+            for (;;) {
+                LockSupport.parkNanos(INTERVAL * 1000);
+                tick++;
+            }
+        }, "jihll-profiler");
+        timer.setDaemon(true);
+        timer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Profiler::report));
+    }
+
+    // Counts a call; the first one also registers the function for the report.
+    // Racing threads may lose counts.
+    static void enter(JihllFunction fn) {
+        if (fn.profiledCalls++ == 0) register(fn);
+    }
+
+    private static synchronized void register(JihllFunction fn) { functions.add(fn); }
+
+    // How a stack frame appears in reports: the function running in it, by
+    // name and where its body starts so that functions sharing a name (two
+    // classes' init, say) stay apart, or the top level of its script.
+    static String frameName(JihllFunction fn, Chunk chunk) {
+        if (fn != null) {
+            if (fn.profileName == null) {
+                int line = fn.chunk.lineAt(fn.address);
+                fn.profileName = fn.name + " (" + (fn.chunk.name != null ? fn.chunk.name : "input") + (line > 0 ? ":" + line : "") + ")";
+            }
+            return fn.profileName;
+        }
+        if (chunk == null) return "<task>";
+        return "<" + (chunk.name != null ? chunk.name : "input") + ">";
+    }
+
+    // One sample: the frames outermost first, and the instruction at pc.
+    static synchronized void record(String[] frames, Chunk chunk, int pc) {
+        samples++;
+        opcodes[chunk.code[pc] & 0xff]++;
+        int line = chunk.lineAt(pc);
+        lines.merge((chunk.name != null ? chunk.name : "<input>") + (line > 0 ? ":" + line : ""), 1L, Long::sum);
+        stacks.merge(String.join(";", frames), 1L, Long::sum);
+    }
+
+    private static synchronized void report() {
+        PrintStream out = System.err;
+        double millis = INTERVAL / 1000.0;
+        out.printf("%n--- profile: %d samples, %.1f ms apart ---%n", samples, millis);
+
+        // Exclusive time goes to the innermost frame; inclusive time to each
+        // distinct frame on the stack, so recursion is counted once.
+        Map<String, Long> exclusive = new HashMap<>(), inclusive = new HashMap<>(), calls = new HashMap<>();
+        for (Map.Entry<String, Long> entry : stacks.entrySet()) {
+            String[] frames = entry.getKey().split(";");
+            exclusive.merge(frames[frames.length - 1], entry.getValue(), Long::sum);
+            for (String frame : new HashSet<>(List.of(frames))) inclusive.merge(frame, entry.getValue(), Long::sum);
+        }
+        for (JihllFunction fn : functions) calls.merge(frameName(fn, fn.chunk), fn.profiledCalls, Long::sum);
+        Set<String> names = new HashSet<>(inclusive.keySet());
+        names.addAll(calls.keySet());
+        List<String> byTime = new ArrayList<>(names);
+        byTime.sort((a, b) -> Long.compare(inclusive.getOrDefault(b, 0L), inclusive.getOrDefault(a, 0L)));
+
+        out.printf("%n%-40s %12s %10s %7s %10s %7s%n", "function", "calls", "incl ms", "incl %", "excl ms", "excl %");
+        for (String name : byTime) {
+            long incl = inclusive.getOrDefault(name, 0L), excl = exclusive.getOrDefault(name, 0L);
+            Long count = calls.get(name);
+            out.printf("%-40s %12s %10.1f %7.1f %10.1f %7.1f%n", name, count != null ? count.toString() : "-",
+                    incl * millis, percent(incl), excl * millis, percent(excl));
+        }
+
+        out.printf("%n%-28s %12s %7s%n", "line", "samples", "%");
+        List<Map.Entry<String, Long>> hotLines = new ArrayList<>(lines.entrySet());
+        hotLines.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        for (Map.Entry<String, Long> entry : hotLines.subList(0, Math.min(20, hotLines.size()))) {
+            out.printf("%-28s %12d %7.1f%n", entry.getKey(), entry.getValue(), percent(entry.getValue()));
+        }
+
+        out.printf("%n%-28s %12s %7s%n", "opcode", "samples", "%");
+        String[] opNames = opNames();
+        List<Integer> hotOps = new ArrayList<>();
+        for (int op = 0; op < opcodes.length; op++) if (opcodes[op] > 0) hotOps.add(op);
+        hotOps.sort((a, b) -> Long.compare(opcodes[b], opcodes[a]));
+        for (int op : hotOps) {
+            out.printf("%-28s %12d %7.1f%n", opNames[op] != null ? opNames[op] : "op " + op, opcodes[op], percent(opcodes[op]));
+        }
+
+        Path folded = Paths.get(FOLDED);
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Long> entry : stacks.entrySet()) text.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        try {
+            Files.writeString(folded, text);
+            out.println("\nFolded stacks written to " + folded);
+        } catch (IOException e) {
+            out.println("\nCould not write " + folded + ": " + e.getMessage());
+        }
+    }
+
+    private static double percent(long count) { return samples == 0 ? 0 : 100.0 * count / samples; }
+
+    // Opcode names by number, from the constants in Op.
+    private static String[] opNames() {
+        String[] names = new String[256];
+        for (Field field : Op.class.getDeclaredFields()) {
+            if (field.getType() != int.class || !Modifier.isStatic(field.getModifiers())) continue;
+            try { names[field.getInt(null) & 0xff] = field.getName(); } catch (IllegalAccessException e) { /* skip */ }
+        }
+        return names;
+    }
+}
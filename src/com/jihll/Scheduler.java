@@ -0,0 +1,83 @@
+package com.jihll;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+// Runs spawned tasks. On Java 21+ every task gets a virtual thread, found
+// reflectively so the interpreter still builds on 11. Otherwise, or when
+// -Djihll.threads=N sets a limit, tasks share a ForkJoinPool of N workers
+// (default: one per core) that adds a bounded number of spare workers while
+// tasks are blocked in join or sleep.
+class Scheduler {
+    static final int THREADS = Integer.getInteger("jihll.threads", 0);
+    static final int MAX_SPARE = Integer.getInteger("jihll.spareThreads", 256);
+
+    private static final ExecutorService executor = create();
+    private static final Object idle = new Object();
+    private static int pending = 0;
+    private static final ConcurrentLinkedQueue<JihllTask> failures = new ConcurrentLinkedQueue<>();
+
+    private static ExecutorService create() {
+        if (THREADS <= 0) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                // Before Java 21: fall through to the pool.
+            }
+        }
+        int parallelism = THREADS > 0 ? THREADS : Runtime.getRuntime().availableProcessors();
+        return new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true,
+                0, parallelism + MAX_SPARE, 1, pool -> true, 60, TimeUnit.SECONDS);
+    }
+
+    static void submit(Runnable task) {
+        synchronized (idle) { pending++; }
+        if (Metrics.ENABLED) Metrics.tasksSpawned.increment();
+        executor.execute(() -> {
+            if (Metrics.ENABLED) Metrics.tasksActive.increment();
+            try {
+                task.run();
+            } finally {
+                if (Metrics.ENABLED) Metrics.tasksActive.decrement();
+                synchronized (idle) { if (--pending == 0) idle.notifyAll(); }
+            }
+        });
+    }
+
+    // Counts work finishing off the pool, such as an asynchronous request, as
+    // pending until it completes, so awaitIdle waits for it too.
+    static void track(CompletableFuture<?> work) {
+        synchronized (idle) { pending++; }
+        work.whenComplete((value, error) -> {
+            synchronized (idle) { if (--pending == 0) idle.notifyAll(); }
+        });
+    }
+
+    static void failed(JihllTask task) { failures.add(task); }
+
+    // Blocks until every spawned task, including ones spawned meanwhile, has
+    // finished, then reports errors from tasks nobody joined.
+    static void awaitIdle() throws InterruptedException {
+        synchronized (idle) { while (pending > 0) idle.wait(); }
+        for (JihllTask task; (task = failures.poll()) != null; ) {
+            if (task.unobserved()) System.err.println("Thread Error: " + task.error);
+        }
+    }
+
+    // Sleeps without holding a pool worker hostage.
+    static void sleep(long millis) {
+        try {
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                boolean done;
+                public boolean block() throws InterruptedException { Thread.sleep(millis); done = true; return true; }
+                public boolean isReleasable() { return done; }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
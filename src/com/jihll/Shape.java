@@ -0,0 +1,39 @@
+package com.jihll;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Hidden class describing which field lives in which slot of an instance's
+// field array. Shapes are immutable; adding a field moves the instance to a
+// child shape, and instances that add the same fields in the same order share
+// one shape. Every class has its own root, so a shape also identifies the class.
+class Shape {
+    final JihllClass klass;
+    final int size;
+    private final Map<String, Integer> slots;
+    private final Map<String, Shape> transitions = new HashMap<>();
+
+    Shape(JihllClass klass) {
+        this.klass = klass;
+        this.size = 0;
+        this.slots = new HashMap<>();
+    }
+
+    private Shape(Shape parent, String name) {
+        this.klass = parent.klass;
+        this.size = parent.size + 1;
+        this.slots = new HashMap<>(parent.slots);
+        this.slots.put(name, parent.size);
+    }
+
+    int indexOf(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    Shape with(String name) {
+        synchronized (transitions) {
+            return transitions.computeIfAbsent(name, n -> new Shape(this, n));
+        }
+    }
+}
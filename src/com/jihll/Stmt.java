@@ -2,6 +2,9 @@ package com.jihll;
 import java.util.List;
 
 abstract class Stmt {
+    // Source line the statement starts on; 0 for blocks the parser synthesizes.
+    int line;
+
     static class Expression extends Stmt {
         final Expr expression;
         Expression(Expr expression) { this.expression = expression; }
@@ -0,0 +1,562 @@
+package com.jihll;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Second execution tier: hot functions whose values are all numbers are
+// translated from chunk bytecode to a JVM class, so HotSpot compiles them like
+// plain Java. Every value is a double in the generated code, and each
+// instruction it cannot express (a string, a global other than the function
+// itself, a call to anything else, any side effect) becomes a deopt point.
+// Nothing before a deopt point has an observable effect, so bailing out just
+// means re-running the whole call in the interpreter, which stays the
+// reference semantics.
+//
+// The entry guard checks the speculation the code was specialised on: every
+// argument is a number and the function's own global still holds it. A
+// function that keeps deoptimizing loses its compiled code and stays
+// interpreted. Disable with --no-tier2 or -Djihll.tier2=false.
+class Tier2 {
+    static boolean enabled = !"false".equals(System.getProperty("jihll.tier2"));
+    static final int CALL_THRESHOLD = Integer.getInteger("jihll.tier2.calls", 1000);
+    static final int BACK_EDGE_THRESHOLD = Integer.getInteger("jihll.tier2.backEdges", 10000);
+    private static final int DEOPT_LIMIT = 10;
+    // Keeps branch offsets within the 16-bit range of JVM branch instructions.
+    private static final int MAX_BODY = 2000;
+
+    // Thrown by generated code at a deopt point; carries no stack trace.
+    static final class Deopt extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        Deopt() { super(null, null, false, false); }
+    }
+    static final Deopt DEOPT = new Deopt();
+
+    // Superclass of the generated classes. call() runs the function with
+    // arguments read from the VM's number slots; osr() enters at a loop
+    // header with the frame's locals, for a loop that got hot mid-call.
+    abstract static class Code {
+        JihllFunction function;
+        int selfSlot = -1; // global slot the body calls itself through
+        int returnPc;      // a RETURN in the function, for resuming after osr()
+        int[] entries;     // loop headers osr() accepts, sorted
+        int deopts;
+        abstract double call(double[] numbers, int base);
+        abstract double osr(double[] numbers, int base, int entry);
+
+        boolean guard(Globals globals) { return selfSlot < 0 || globals.value(selfSlot) == function; }
+        boolean accepts(int pc) { return Arrays.binarySearch(entries, pc) >= 0; }
+
+        // Called after a Deopt. Returns false once the code should be dropped.
+        boolean deoptimized() { return ++deopts < DEOPT_LIMIT; }
+    }
+
+    // Compiled code for fn, compiling it on first request; null if fn can't be compiled.
+    static Code compile(JihllFunction fn, Globals globals) {
+        if (!enabled || fn.tier2Failed) return null;
+        Code code = fn.tier2;
+        if (code != null) return code;
+        synchronized (fn) {
+            if (fn.tier2 == null && !fn.tier2Failed) {
+                try {
+                    fn.tier2 = new Tier2(fn, globals).translate();
+                } catch (RuntimeException | LinkageError e) {
+                    fn.tier2 = null;
+                }
+                if (fn.tier2 == null) fn.tier2Failed = true;
+            }
+            return fn.tier2;
+        }
+    }
+
+    static void discard(JihllFunction fn) {
+        fn.tier2 = null;
+        fn.tier2Failed = true;
+    }
+
+    // Abstract stack entry types: a double, an int 0/1 from EQUAL, or the
+    // function's own value (fetched from its global, never materialised).
+    private static final byte NUM = 'D', BOOL = 'Z', SELF = 'F';
+
+    private final JihllFunction fn;
+    private final Chunk chunk;
+    private final Globals globals;
+    private final int arity;
+    // Stack types on entry to each reachable instruction, by pc.
+    private final TreeMap<Integer, byte[]> states = new TreeMap<>();
+    private final List<Integer> loopHeaders = new ArrayList<>();
+    private int selfSlot = -1;
+    private int returnPc = -1;
+    private int maxDepth;
+
+    private Tier2(JihllFunction fn, Globals globals) {
+        this.fn = fn;
+        this.chunk = fn.chunk;
+        this.globals = globals;
+        this.arity = fn.arity;
+    }
+
+    private Code translate() {
+        if (!analyze()) return null;
+        byte[] bytes = new ClassWriter().build();
+        Code code = define(bytes);
+        code.function = fn;
+        code.selfSlot = selfSlot;
+        code.returnPc = returnPc;
+        code.entries = loopHeaders.stream().mapToInt(Integer::intValue).sorted().toArray();
+        return code;
+    }
+
+    // Walks every instruction reachable from the function's entry, tracking
+    // the type of each stack entry. Fails if two paths meet with different
+    // stacks, or if no path returns a number.
+    private boolean analyze() {
+        Deque<Integer> work = new ArrayDeque<>();
+        states.put(fn.address, new byte[0]);
+        work.add(fn.address);
+        while (!work.isEmpty()) {
+            int pc = work.poll();
+            if (states.size() > MAX_BODY || pc < 0 || pc >= chunk.count) return false;
+            byte[] in = states.get(pc);
+            maxDepth = Math.max(maxDepth, in.length);
+            int op = Op.generic(chunk.code[pc]);
+            int next = pc + 1 + Op.operands(op);
+            byte[] out = transfer(pc, op, in);
+            if (out == null) continue; // RETURN or a deopt point: no successors
+            if (Op.isJump(op)) {
+                int target = next + chunk.code[pc + 1];
+                if (!merge(target, out, work)) return false;
+                if (target <= pc && out.length == 0) loopHeaders.add(target);
+                if (op == Op.JUMP) continue;
+            }
+            if (!merge(next, out, work)) return false;
+        }
+        return returnPc >= 0;
+    }
+
+    private boolean merge(int pc, byte[] stack, Deque<Integer> work) {
+        byte[] seen = states.get(pc);
+        if (seen == null) { states.put(pc, stack); work.add(pc); return true; }
+        return Arrays.equals(seen, stack);
+    }
+
+    // Stack types after the instruction, or null if control stops there.
+    private byte[] transfer(int pc, int op, byte[] in) {
+        int n = in.length;
+        byte top = n > 0 ? in[n - 1] : 0, under = n > 1 ? in[n - 2] : 0;
+        switch (op) {
+            case Op.CONSTANT: {
+                Object value = chunk.constants[chunk.code[pc + 1]];
+                if (value instanceof Double) return push(in, 0, NUM);
+                if (value instanceof Boolean) return push(in, 0, BOOL);
+                return null;
+            }
+            case Op.GET_LOCAL: return chunk.code[pc + 1] < arity ? push(in, 0, NUM) : null;
+            case Op.SET_LOCAL: return top == NUM && chunk.code[pc + 1] < arity ? in : null;
+            case Op.SET_LOCAL_POP: return top == NUM && chunk.code[pc + 1] < arity ? push(in, 1) : null;
+            case Op.POP: return n > 0 ? push(in, 1) : null;
+            case Op.ADD: case Op.SUBTRACT: case Op.MULTIPLY: case Op.DIVIDE:
+            case Op.LESS: case Op.GREATER: case Op.LESS_EQUAL: case Op.GREATER_EQUAL:
+                return top == NUM && under == NUM ? push(in, 2, NUM) : null;
+            case Op.NEGATE: return top == NUM ? in : null;
+            case Op.EQUAL: case Op.NOT_EQUAL:
+                return n >= 2 && top == under && top != SELF ? push(in, 2, BOOL) : null;
+            case Op.ADD_LOCAL_CONSTANT: case Op.SUBTRACT_LOCAL_CONSTANT:
+                return chunk.code[pc + 1] < arity && chunk.constants[chunk.code[pc + 2]] instanceof Double ? push(in, 0, NUM) : null;
+            case Op.JUMP: return in;
+            case Op.JUMP_IF_FALSE: return top == NUM || top == BOOL ? push(in, 1) : null;
+            case Op.JUMP_IF_NOT_LESS: case Op.JUMP_IF_NOT_GREATER:
+            case Op.JUMP_IF_NOT_LESS_EQUAL: case Op.JUMP_IF_NOT_GREATER_EQUAL:
+                return top == NUM && under == NUM ? push(in, 2) : null;
+            case Op.JUMP_IF_NOT_EQUAL: case Op.JUMP_IF_EQUAL:
+                return n >= 2 && top == under && top != SELF ? push(in, 2) : null;
+            case Op.GET_GLOBAL: {
+                int slot = chunk.code[pc + 1];
+                // Only one slot is guarded on entry, so a second name for
+                // the function (g = f) is left to the interpreter.
+                if (globals.value(slot) != fn || (selfSlot >= 0 && slot != selfSlot)) return null;
+                selfSlot = slot;
+                return push(in, 0, SELF);
+            }
+            case Op.CALL: {
+                int argCount = chunk.code[pc + 1];
+                if (argCount != arity || n < argCount + 1 || in[n - argCount - 1] != SELF) return null;
+                for (int i = n - argCount; i < n; i++) if (in[i] != NUM) return null;
+                return push(in, argCount + 1, NUM);
+            }
+            case Op.RETURN:
+                if (top == NUM && returnPc < 0) returnPc = pc;
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    private static byte[] push(byte[] in, int pops, byte... pushed) {
+        byte[] out = Arrays.copyOf(in, in.length - pops + pushed.length);
+        System.arraycopy(pushed, 0, out, in.length - pops, pushed.length);
+        return out;
+    }
+
+    private static final AtomicInteger classCount = new AtomicInteger();
+
+    // Hidden classes (Java 15+) are unloaded with their Code object; on older
+    // JVMs the class is defined normally in this package. Looked up
+    // reflectively so the interpreter still builds on Java 11.
+    private static Code define(byte[] bytes) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            Class<?> generated;
+            MethodHandles.Lookup owner;
+            try {
+                Class<?> option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+                Object options = Array.newInstance(option, 0);
+                owner = (MethodHandles.Lookup) MethodHandles.Lookup.class
+                        .getMethod("defineHiddenClass", byte[].class, boolean.class, options.getClass())
+                        .invoke(lookup, bytes, true, options);
+                generated = owner.lookupClass();
+            } catch (ClassNotFoundException | NoSuchMethodException e) {
+                generated = lookup.defineClass(bytes);
+                owner = lookup;
+            }
+            return (Code) owner.findConstructor(generated, MethodType.methodType(void.class)).invoke();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Emits a version 49 class file: the old type-inferring verifier checks
+    // it, so no StackMapTable frames have to be computed for the branches.
+    private final class ClassWriter {
+        private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+        private final DataOutputStream pool = new DataOutputStream(poolBytes);
+        private final Map<String, Integer> poolIndex = new HashMap<>();
+        private int poolCount = 1;
+
+        private final String name = "com/jihll/Tier2$" + fn.name.replaceAll("[^A-Za-z0-9_]", "_") + "$" + classCount.incrementAndGet();
+        private final String superName = "com/jihll/Tier2$Code";
+        private final String bodyDescriptor;
+
+        ClassWriter() {
+            StringBuilder descriptor = new StringBuilder("(");
+            for (int i = 0; i < arity; i++) descriptor.append('D');
+            bodyDescriptor = descriptor.append("I)D").toString();
+        }
+
+        private int entry(String key, int tag, Writer writer) {
+            Integer index = poolIndex.get(key);
+            if (index != null) return index;
+            try {
+                pool.writeByte(tag);
+                writer.write(pool);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            int slot = poolCount;
+            poolCount += tag == 6 ? 2 : 1; // doubles take two pool slots
+            poolIndex.put(key, slot);
+            return slot;
+        }
+
+        private int utf8(String s) { return entry("U" + s, 1, out -> out.writeUTF(s)); }
+        private int classRef(String internal) { int u = utf8(internal); return entry("C" + internal, 7, out -> out.writeShort(u)); }
+        private int doubleConst(double d) { return entry("D" + Double.doubleToRawLongBits(d), 6, out -> out.writeDouble(d)); }
+        private int methodRef(String owner, String method, String descriptor) {
+            int c = classRef(owner);
+            int u1 = utf8(method), u2 = utf8(descriptor);
+            int nat = entry("N" + method + descriptor, 12, out -> { out.writeShort(u1); out.writeShort(u2); });
+            return entry("M" + owner + "." + method + descriptor, 10, out -> { out.writeShort(c); out.writeShort(nat); });
+        }
+        private int fieldRef(String owner, String field, String descriptor) {
+            int c = classRef(owner);
+            int u1 = utf8(field), u2 = utf8(descriptor);
+            int nat = entry("N" + field + descriptor, 12, out -> { out.writeShort(u1); out.writeShort(u2); });
+            return entry("F" + owner + "." + field + descriptor, 9, out -> { out.writeShort(c); out.writeShort(nat); });
+        }
+
+        byte[] build() {
+            try {
+                byte[] init = init(), body = body(), call = bridge(false), osr = bridge(true);
+                int thisClass = classRef(name), superClass = classRef(superName);
+                int initName = utf8("<init>"), voidDescriptor = utf8("()V");
+                int bodyName = utf8("body"), bodyType = utf8(bodyDescriptor);
+                int callName = utf8("call"), callType = utf8("([DI)D");
+                int osrName = utf8("osr"), osrType = utf8("([DII)D");
+                int codeName = utf8("Code");
+
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(0xCAFEBABE);
+                out.writeShort(0);
+                out.writeShort(49);
+                out.writeShort(poolCount);
+                out.write(poolBytes.toByteArray());
+                out.writeShort(0x0030); // final, super
+                out.writeShort(thisClass);
+                out.writeShort(superClass);
+                out.writeShort(0); // interfaces
+                out.writeShort(0); // fields
+                out.writeShort(4);
+                method(out, 0x0000, initName, voidDescriptor, codeName, init);
+                method(out, 0x0008, bodyName, bodyType, codeName, body);
+                method(out, 0x0001, callName, callType, codeName, call);
+                method(out, 0x0001, osrName, osrType, codeName, osr);
+                out.writeShort(0); // attributes
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void method(DataOutputStream out, int access, int name, int descriptor, int codeName, byte[] code) throws IOException {
+            out.writeShort(access);
+            out.writeShort(name);
+            out.writeShort(descriptor);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(code.length);
+            out.write(code);
+        }
+
+        // The Code attribute body: max_stack, max_locals, code, no handlers, no attributes.
+        private byte[] attribute(int maxStack, int maxLocals, byte[] code) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                out.writeShort(maxStack);
+                out.writeShort(maxLocals);
+                out.writeInt(code.length);
+                out.write(code);
+                out.writeShort(0);
+                out.writeShort(0);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return bytes.toByteArray();
+        }
+
+        private byte[] init() {
+            Asm asm = new Asm();
+            asm.op(0x2A); // aload_0
+            asm.op(0xB7); asm.u2(methodRef(superName, "<init>", "()V")); // invokespecial
+            asm.op(0xB1); // return
+            return attribute(1, 1, asm.bytes());
+        }
+
+        // call: body(numbers[base], ..., numbers[base + arity - 1], -1)
+        // osr:  the same with the entry pc as the last argument.
+        private byte[] bridge(boolean osr) {
+            Asm asm = new Asm();
+            for (int i = 0; i < arity; i++) {
+                asm.op(0x2B); // aload_1
+                asm.op(0x1C); // iload_2
+                asm.intConst(i);
+                asm.op(0x60); // iadd
+                asm.op(0x31); // daload
+            }
+            if (osr) asm.op(0x1D); else asm.op(0x02); // iload_3 / iconst_m1
+            asm.op(0xB8); asm.u2(methodRef(name, "body", bodyDescriptor)); // invokestatic
+            asm.op(0xAF); // dreturn
+            return attribute(2 * arity + 4, osr ? 4 : 3, asm.bytes());
+        }
+
+        private byte[] body() {
+            Asm asm = new Asm();
+            int entryLocal = 2 * arity;
+            int deopt = fieldRef("com/jihll/Tier2", "DEOPT", "Lcom/jihll/Tier2$Deopt;");
+            int self = methodRef(name, "body", bodyDescriptor);
+            int countCall = Metrics.ENABLED ? methodRef("com/jihll/Metrics", "countCall", "()V") : 0;
+            int bits = methodRef("java/lang/Double", "doubleToLongBits", "(D)J");
+
+            // Entry: dispatch to an OSR loop header, or fall into the function start.
+            int[] headers = loopHeaders.stream().mapToInt(Integer::intValue).distinct().sorted().toArray();
+            asm.iload(entryLocal);
+            asm.lookupswitch(fn.address, headers);
+
+            for (Map.Entry<Integer, byte[]> state : states.entrySet()) {
+                int pc = state.getKey();
+                byte[] in = state.getValue();
+                byte top = in.length > 0 ? in[in.length - 1] : 0;
+                asm.label(pc);
+                int op = Op.generic(chunk.code[pc]);
+                int next = pc + 1 + Op.operands(op);
+                int target = Op.isJump(op) ? next + chunk.code[pc + 1] : -1;
+                if (transfer(pc, op, in) == null && op != Op.RETURN) { asm.deopt(deopt); continue; }
+                switch (op) {
+                    case Op.CONSTANT: {
+                        Object value = chunk.constants[chunk.code[pc + 1]];
+                        if (value instanceof Double) asm.ldc2(doubleConst((Double) value));
+                        else asm.op((Boolean) value ? 0x04 : 0x03); // iconst_1 / iconst_0
+                        break;
+                    }
+                    case Op.GET_LOCAL: asm.dload(2 * chunk.code[pc + 1]); break;
+                    case Op.SET_LOCAL: asm.op(0x5C); asm.dstore(2 * chunk.code[pc + 1]); break; // dup2
+                    case Op.SET_LOCAL_POP: asm.dstore(2 * chunk.code[pc + 1]); break;
+                    case Op.POP: if (top == NUM) asm.op(0x58); else if (top == BOOL) asm.op(0x57); break; // pop2 / pop
+                    case Op.ADD: asm.op(0x63); break;
+                    case Op.SUBTRACT: asm.op(0x67); break;
+                    case Op.MULTIPLY: asm.op(0x6B); break;
+                    case Op.DIVIDE: asm.op(0x6F); break;
+                    case Op.NEGATE: asm.op(0x77); break;
+                    // Comparisons produce 1.0 or 0.0, as in the interpreter.
+                    case Op.LESS: asm.compare(0x98, 0x9C); break;           // dcmpg, ifge -> 0
+                    case Op.GREATER: asm.compare(0x97, 0x9E); break;        // dcmpl, ifle -> 0
+                    case Op.LESS_EQUAL: asm.compare(0x98, 0x9D); break;     // dcmpg, ifgt -> 0
+                    case Op.GREATER_EQUAL: asm.compare(0x97, 0x9B); break;  // dcmpl, iflt -> 0
+                    case Op.EQUAL: case Op.NOT_EQUAL:
+                        asm.equal(top, bits);
+                        if (op == Op.NOT_EQUAL) { asm.op(0x04); asm.op(0x82); } // iconst_1, ixor
+                        break;
+                    case Op.ADD_LOCAL_CONSTANT: case Op.SUBTRACT_LOCAL_CONSTANT:
+                        asm.dload(2 * chunk.code[pc + 1]);
+                        asm.ldc2(doubleConst((Double) chunk.constants[chunk.code[pc + 2]]));
+                        asm.op(op == Op.ADD_LOCAL_CONSTANT ? 0x63 : 0x67);
+                        break;
+                    case Op.JUMP: asm.jump(0xA7, target); break; // goto
+                    case Op.JUMP_IF_FALSE:
+                        if (top == NUM) { asm.op(0x0E); asm.op(0x97); } // dconst_0, dcmpl: 0 only for +-0.0
+                        asm.jump(0x99, target); // ifeq
+                        break;
+                    case Op.JUMP_IF_NOT_LESS: asm.op(0x98); asm.jump(0x9C, target); break;
+                    case Op.JUMP_IF_NOT_GREATER: asm.op(0x97); asm.jump(0x9E, target); break;
+                    case Op.JUMP_IF_NOT_LESS_EQUAL: asm.op(0x98); asm.jump(0x9D, target); break;
+                    case Op.JUMP_IF_NOT_GREATER_EQUAL: asm.op(0x97); asm.jump(0x9B, target); break;
+                    case Op.JUMP_IF_NOT_EQUAL: asm.equal(top, bits); asm.jump(0x99, target); break; // ifeq
+                    case Op.JUMP_IF_EQUAL: asm.equal(top, bits); asm.jump(0x9A, target); break;     // ifne
+                    case Op.GET_GLOBAL: break; // the function itself: nothing to load
+                    case Op.CALL:
+                        // Self-calls never reach the VM, so they count themselves.
+                        if (Metrics.ENABLED) { asm.op(0xB8); asm.u2(countCall); } // invokestatic
+                        asm.op(0x02); // iconst_m1
+                        asm.op(0xB8); asm.u2(self);
+                        break;
+                    case Op.RETURN:
+                        if (top == NUM) asm.op(0xAF); else asm.deopt(deopt); // dreturn
+                        break;
+                    default:
+                        asm.deopt(deopt);
+                }
+            }
+            // Two words per entry, plus room for the equality and comparison sequences.
+            return attribute(2 * maxDepth + 6, entryLocal + 1, asm.resolve());
+        }
+    }
+
+    private interface Writer { void write(DataOutputStream out) throws IOException; }
+
+    // Minimal JVM code buffer with forward-referenced labels keyed by chunk pc.
+    private static final class Asm {
+        private byte[] code = new byte[256];
+        private int length;
+        private final Map<Integer, Integer> labels = new HashMap<>();
+        private final List<int[]> fixups = new ArrayList<>(); // {at, from, pc, wide}
+        private int synthetic = -1; // labels local to one sequence use negative keys
+
+        void op(int b) {
+            if (length == code.length) code = Arrays.copyOf(code, length * 2);
+            code[length++] = (byte) b;
+        }
+        void u2(int v) { op(v >>> 8); op(v); }
+        void u4(int v) { u2(v >>> 16); u2(v); }
+        void label(int pc) { labels.put(pc, length); }
+
+        void jump(int opcode, int pc) {
+            int from = length;
+            op(opcode);
+            fixups.add(new int[] { length, from, pc, 0 });
+            u2(0);
+        }
+
+        void lookupswitch(int start, int[] keys) {
+            int from = length;
+            op(0xAB);
+            while (length % 4 != 0) op(0);
+            fixups.add(new int[] { length, from, start, 1 });
+            u4(0);
+            u4(keys.length);
+            for (int key : keys) {
+                u4(key);
+                fixups.add(new int[] { length, from, key, 1 });
+                u4(0);
+            }
+        }
+
+        void intConst(int v) {
+            if (v <= 5) op(0x03 + v);       // iconst_n
+            else if (v < 128) { op(0x10); op(v); } // bipush
+            else { op(0x11); u2(v); }       // sipush
+        }
+        void ldc2(int index) { op(0x14); u2(index); }
+        void dload(int local) { if (local < 256) { op(0x18); op(local); } else { op(0xC4); op(0x18); u2(local); } }
+        void dstore(int local) { if (local < 256) { op(0x39); op(local); } else { op(0xC4); op(0x39); u2(local); } }
+        void iload(int local) { if (local < 256) { op(0x15); op(local); } else { op(0xC4); op(0x15); u2(local); } }
+        void deopt(int field) { op(0xB2); u2(field); op(0xBF); } // getstatic, athrow
+
+        // a b -> 1.0 or 0.0; 'falseBranch' jumps to the 0.0 result.
+        void compare(int cmp, int falseBranch) {
+            int zero = synthetic--, end = synthetic--;
+            op(cmp);
+            jump(falseBranch, zero);
+            op(0x0F); // dconst_1
+            jump(0xA7, end);
+            label(zero);
+            op(0x0E); // dconst_0
+            label(end);
+        }
+
+        // a b -> int 1 if equal, with Double.equals semantics for numbers.
+        void equal(byte type, int bits) {
+            int differ = synthetic--, end = synthetic--;
+            if (type == NUM) {
+                op(0xB8); u2(bits); // b -> long
+                op(0x5E);           // dup2_x2: lb a lb
+                op(0x58);           // pop2:    lb a
+                op(0xB8); u2(bits); // lb la
+                op(0x94);           // lcmp
+            } else {
+                op(0x64);           // isub
+            }
+            jump(0x9A, differ);     // ifne
+            op(0x04);
+            jump(0xA7, end);
+            label(differ);
+            op(0x03);
+            label(end);
+        }
+
+        byte[] resolve() {
+            for (int[] fixup : fixups) {
+                Integer target = labels.get(fixup[2]);
+                if (target == null) throw new IllegalStateException("Unresolved jump to " + fixup[2]);
+                int offset = target - fixup[1];
+                if (fixup[3] == 1) {
+                    code[fixup[0]] = (byte) (offset >>> 24);
+                    code[fixup[0] + 1] = (byte) (offset >>> 16);
+                    code[fixup[0] + 2] = (byte) (offset >>> 8);
+                    code[fixup[0] + 3] = (byte) offset;
+                } else {
+                    if (offset != (short) offset) throw new IllegalStateException("Branch out of range");
+                    code[fixup[0]] = (byte) (offset >>> 8);
+                    code[fixup[0] + 1] = (byte) offset;
+                }
+            }
+            return bytes();
+        }
+
+        byte[] bytes() { return Arrays.copyOf(code, length); }
+    }
+}
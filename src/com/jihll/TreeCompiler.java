@@ -0,0 +1,239 @@
+package com.jihll;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Front end of the AST engine: compiles the parser's Stmt/Expr tree into Node
+// trees instead of bytecode. Scoping mirrors Compiler exactly (parameters,
+// 'this' and catch variables are locals, every other name is a global), and
+// locals get the slots the VM would give them on its stack.
+class TreeCompiler {
+    // -Djihll.engine=ast or --engine ast.
+    static boolean enabled = "ast".equals(System.getProperty("jihll.engine"));
+    // Stack for the thread that runs a script, in MB (-Djihll.treeStack).
+    static final long STACK_SIZE = Long.getLong("jihll.treeStack", 512) << 20;
+
+    private final Globals globals;
+    private final List<Local> locals = new ArrayList<>();
+    private int scopeDepth = 0;
+    private int frameSize = 0;
+
+    private static class Local {
+        String name;
+        int depth;
+        Local(String name, int depth) { this.name = name; this.depth = depth; }
+    }
+
+    TreeCompiler(Globals globals) { this.globals = globals; }
+
+    Node.Body compile(List<Stmt> statements) {
+        Node code = block(statements);
+        return new Node.Body(code, Math.max(frameSize, 1));
+    }
+
+    static Node.Body load(Path path, Globals globals) throws IOException {
+        String source = Files.readString(path);
+        return new TreeCompiler(globals).compile(new Parser(new Lexer(source)).parse());
+    }
+
+    static void run(Node.Body script, Globals globals) { script.run(new Node.Frame(script.frameSize, globals)); }
+
+    private int resolveLocal(String name) {
+        for (int i = locals.size() - 1; i >= 0; i--) {
+            if (locals.get(i).name.equals(name)) return i;
+        }
+        return -1;
+    }
+
+    private void beginScope() { scopeDepth++; }
+
+    private void endScope() {
+        scopeDepth--;
+        while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > scopeDepth) locals.remove(locals.size() - 1);
+    }
+
+    private int addLocal(String name) {
+        locals.add(new Local(name, scopeDepth));
+        frameSize = Math.max(frameSize, locals.size());
+        return locals.size() - 1;
+    }
+
+    private Node block(List<Stmt> statements) {
+        Node[] nodes = new Node[statements.size()];
+        for (int i = 0; i < nodes.length; i++) nodes[i] = statement(statements.get(i));
+        return sequence(nodes);
+    }
+
+    // A one-statement block is just that statement.
+    private static Node sequence(Node[] nodes) { return nodes.length == 1 ? nodes[0] : new Node.Block(nodes); }
+
+    private Node statement(Stmt stmt) {
+        if (stmt instanceof Stmt.Print) {
+            return new Node.Print(expression(((Stmt.Print) stmt).expression));
+        } else if (stmt instanceof Stmt.Expression) {
+            return new Node.ExpressionStatement(expression(((Stmt.Expression) stmt).expression));
+        } else if (stmt instanceof Stmt.Class) {
+            Stmt.Class classStmt = (Stmt.Class) stmt;
+            JihllFunction[] methods = new JihllFunction[classStmt.methods.size()];
+            for (int i = 0; i < methods.length; i++) methods[i] = function(classStmt.methods.get(i), true);
+            return new Node.ClassDeclaration(classStmt.name.lexeme, globals.slot(classStmt.name.lexeme), methods);
+        } else if (stmt instanceof Stmt.Try) {
+            Stmt.Try tryStmt = (Stmt.Try) stmt;
+            Node body = statement(tryStmt.tryBlock);
+            beginScope();
+            int slot = addLocal(tryStmt.errorVar.lexeme);
+            Node handler = statement(tryStmt.catchBlock);
+            endScope();
+            return new Node.Try(body, slot, handler);
+        } else if (stmt instanceof Stmt.Import) {
+            return new Node.Import(expression(((Stmt.Import) stmt).file));
+        } else if (stmt instanceof Stmt.Function) {
+            Stmt.Function func = (Stmt.Function) stmt;
+            return new Node.Define(globals.slot(func.name.lexeme), function(func, false));
+        } else if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            Node condition = expression(ifStmt.condition);
+            Node thenBranch = statement(ifStmt.thenBranch);
+            Node elseBranch = ifStmt.elseBranch != null ? statement(ifStmt.elseBranch) : null;
+            return new Node.If(condition, thenBranch, elseBranch);
+        } else if (stmt instanceof Stmt.While) {
+            Stmt.While whileStmt = (Stmt.While) stmt;
+            return new Node.While(expression(whileStmt.condition), statement(whileStmt.body));
+        } else if (stmt instanceof Stmt.Return) {
+            Stmt.Return ret = (Stmt.Return) stmt;
+            return new Node.Return(ret.value != null ? expression(ret.value) : new Node.Constant(null));
+        } else if (stmt instanceof Stmt.Block) {
+            beginScope();
+            Node block = block(((Stmt.Block) stmt).statements);
+            endScope();
+            return block;
+        }
+        throw new RuntimeException("Unknown statement " + stmt.getClass().getSimpleName());
+    }
+
+    // Methods get 'this' in slot 0; parameters follow. A trailing expression
+    // (or if/else ending in expressions) is the result.
+    private JihllFunction function(Stmt.Function func, boolean method) {
+        List<Local> savedLocals = new ArrayList<>(locals);
+        int savedFrameSize = frameSize;
+        locals.clear();
+        frameSize = 0;
+
+        if (method) addLocal("this");
+        for (Token param : func.params) addLocal(param.lexeme);
+
+        Node[] body = new Node[func.body.size()];
+        for (int i = 0; i < body.length; i++) {
+            Stmt s = func.body.get(i);
+            if (i < body.length - 1) body[i] = statement(s);
+            else if (s instanceof Stmt.Expression) body[i] = new Node.Return(expression(((Stmt.Expression) s).expression));
+            else if (s instanceof Stmt.If) body[i] = ifValue((Stmt.If) s);
+            else body[i] = statement(s);
+        }
+        Node.Body code = new Node.Body(sequence(body), Math.max(frameSize, 1));
+
+        locals.clear();
+        locals.addAll(savedLocals);
+        frameSize = savedFrameSize;
+        return new JihllFunction(func.name.lexeme, func.params.size(), code);
+    }
+
+    // An if/else in result position: each branch returns its last value.
+    private Node ifValue(Stmt.If ifStmt) {
+        Node condition = expression(ifStmt.condition);
+        Node thenBranch = blockValue((Stmt.Block) ifStmt.thenBranch);
+        Node elseBranch = ifStmt.elseBranch != null ? blockValue((Stmt.Block) ifStmt.elseBranch) : new Node.Return(new Node.Constant(null));
+        return new Node.If(condition, thenBranch, elseBranch);
+    }
+
+    private Node blockValue(Stmt.Block block) {
+        List<Stmt> stmts = block.statements;
+        List<Node> nodes = new ArrayList<>();
+        for (int i = 0; i < stmts.size(); i++) {
+            Stmt s = stmts.get(i);
+            if (i < stmts.size() - 1) {
+                nodes.add(statement(s));
+            } else if (s instanceof Stmt.Expression) {
+                nodes.add(new Node.Return(expression(((Stmt.Expression) s).expression)));
+            } else if (s instanceof Stmt.If) {
+                nodes.add(ifValue((Stmt.If) s));
+            } else {
+                nodes.add(statement(s));
+                nodes.add(new Node.Return(new Node.Constant(null)));
+            }
+        }
+        if (stmts.isEmpty()) nodes.add(new Node.Return(new Node.Constant(null)));
+        return sequence(nodes.toArray(new Node[0]));
+    }
+
+    private Node[] expressions(List<Expr> exprs) {
+        Node[] nodes = new Node[exprs.size()];
+        for (int i = 0; i < nodes.length; i++) nodes[i] = expression(exprs.get(i));
+        return nodes;
+    }
+
+    private Node expression(Expr expr) {
+        if (expr instanceof Expr.Assign) {
+            Expr.Assign assign = (Expr.Assign) expr;
+            Node value = expression(assign.value);
+            int arg = resolveLocal(assign.name.lexeme);
+            if (arg != -1) return new Node.SetLocal(arg, value);
+            return new Node.SetGlobal(globals.slot(assign.name.lexeme), value);
+        } else if (expr instanceof Expr.Variable) {
+            String name = ((Expr.Variable) expr).name.lexeme;
+            int arg = resolveLocal(name);
+            if (arg != -1) return new Node.Local(arg);
+            return new Node.Global(globals.slot(name));
+        } else if (expr instanceof Expr.Set) {
+            Expr.Set set = (Expr.Set) expr;
+            return new Node.SetProperty(expression(set.object), set.name.lexeme, expression(set.value));
+        } else if (expr instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr;
+            return new Node.GetProperty(expression(get.object), get.name.lexeme);
+        } else if (expr instanceof Expr.Spawn) {
+            Expr inner = ((Expr.Spawn) expr).expression;
+            if (!(inner instanceof Expr.Call)) throw new RuntimeException("Spawn must call a function.");
+            Expr.Call call = (Expr.Call) inner;
+            return new Node.Spawn(expression(call.callee), expressions(call.arguments));
+        } else if (expr instanceof Expr.Call && ((Expr.Call) expr).callee instanceof Expr.Get) {
+            Expr.Call call = (Expr.Call) expr;
+            Expr.Get get = (Expr.Get) call.callee;
+            return new Node.Invoke(expression(get.object), get.name.lexeme, expressions(call.arguments));
+        } else if (expr instanceof Expr.Call) {
+            Expr.Call call = (Expr.Call) expr;
+            return new Node.Call(expression(call.callee), expressions(call.arguments));
+        } else if (expr instanceof Expr.Literal) {
+            Object value = ((Expr.Literal) expr).value;
+            return value instanceof Double ? new Node.NumberConstant((Double) value) : new Node.Constant(value);
+        } else if (expr instanceof Expr.This) {
+            return new Node.Local(0);
+        } else if (expr instanceof Expr.Array) {
+            return new Node.ListLiteral(expressions(((Expr.Array) expr).elements));
+        } else if (expr instanceof Expr.MapLiteral) {
+            Expr.MapLiteral map = (Expr.MapLiteral) expr;
+            return new Node.MapLiteral(expressions(map.keys), expressions(map.values));
+        } else if (expr instanceof Expr.Binary) {
+            Expr folded = Compiler.fold(expr);
+            if (folded != expr) return expression(folded);
+            Expr.Binary binary = (Expr.Binary) expr;
+            Node left = expression(binary.left), right = expression(binary.right);
+            switch (binary.operator.type) {
+                case PLUS: return new Node.Add(left, right);
+                case MINUS: return new Node.Subtract(left, right);
+                case STAR: return new Node.Multiply(left, right);
+                case SLASH: return new Node.Divide(left, right);
+                case LESS: return new Node.Less(left, right);
+                case GREATER: return new Node.Greater(left, right);
+                case LESS_EQUAL: return new Node.LessEqual(left, right);
+                case GREATER_EQUAL: return new Node.GreaterEqual(left, right);
+                case EQUAL_EQUAL: return new Node.Equal(left, right, false);
+                case BANG_EQUAL: return new Node.Equal(left, right, true);
+                default: break;
+            }
+        }
+        throw new RuntimeException("Unknown expression " + expr.getClass().getSimpleName());
+    }
+}
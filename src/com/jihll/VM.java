@@ -2,31 +2,66 @@ package com.jihll;
 
 import java.util.*;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.file.Path;
 
 class VM {
-    private final Object[] stack = new Object[1024];
+    // Operand stack slots, grown on demand up to MAX_STACK (-Djihll.maxStack).
+    static final int INITIAL_STACK = Integer.getInteger("jihll.stack", 1024);
+    static final int MAX_STACK = Integer.getInteger("jihll.maxStack", 1 << 24);
+
+    // Quickening: a generic instruction that sees operand types with a faster
+    // form rewrites its own opcode in chunk.code, and the quickened form
+    // checks a cheap guard, rewriting the site back and re-dispatching when it
+    // fails. All forms of an instruction share its operands and each is
+    // correct for whatever it accepts, so threads running the same chunk can
+    // race on the opcode word: a stale read just runs another correct form.
+    // A site that has fallen back QUICKEN_LIMIT times stays generic.
+    // Disable with --no-quicken or -Djihll.quicken=false.
+    static boolean quickening = !"false".equals(System.getProperty("jihll.quicken"));
+    private static final int QUICKEN_LIMIT = 4;
+
+    // Numbers live unboxed in 'numbers'; their 'stack' slot holds the NUMBER tag.
+    private static final Object NUMBER = new Object();
+    private Object[] stack;
+    private double[] numbers;
     private int sp = 0; 
-    public final Map<String, Object> globals = new HashMap<>();
+    public final Globals globals;
     public Chunk chunk;
     public int ip = 0;
 
-    static class Frame {
-        final Chunk chunk;
-        final int ip;
-        final int fp;
-        final Integer catchAddress;
-        final Object returnOverride;
-        Frame(Chunk chunk, int ip, int fp, Integer catchAddress, Object returnOverride) {
-            this.chunk = chunk; this.ip = ip; this.fp = fp; this.catchAddress = catchAddress; this.returnOverride = returnOverride;
-        }
-    }
-    private final Stack<Frame> frames = new Stack<>();
+    // Saved caller state, one entry per active call, kept in parallel arrays
+    // that are reused across calls so CALL/RETURN allocate nothing.
+    private Chunk[] frameChunks = new Chunk[64];
+    private int[] frameIps = new int[64];
+    private int[] frameFps = new int[64];
+    private int[] frameReturnSlots = new int[64];
+    private Object[] frameOverrides = new Object[64];
+    private int frameCount = 0;
     private int fp = 0;
-    private Integer currentCatchAddress = null;
 
-    void defineNative(String name, NativeMethod method) { globals.put(name, method); }
+    // The function running in the current frame (null at a script's top
+    // level) and the one each saved frame was running, for tier-2 back-edge
+    // counts and the profiler; then the last timer tick the profiler sampled.
+    private JihllFunction function;
+    private JihllFunction[] frameFunctions = new JihllFunction[64];
+    private int profileTick;
+
+    // Metrics not yet added to the shared counters (see flushMetrics).
+    private int metricsBudget = Metrics.BATCH;
+    private long pendingCalls;
+    private int frameHighWater;
+
+    VM() { this(new Globals()); }
+    VM(Globals globals) { this(globals, INITIAL_STACK); }
+    VM(Globals globals, int stackSize) {
+        this.globals = globals;
+        this.stack = new Object[stackSize];
+        this.numbers = new double[stackSize];
+    }
+
+    static void defineNative(Globals globals, String name, NativeMethod method) {
+        globals.define(name, Metrics.ENABLED ? Metrics.timed(name, method) : method);
+    }
 
     void interpret(Chunk chunk) {
         this.chunk = chunk;
@@ -36,219 +71,530 @@ class VM {
     }
     
     public void push(Object value) { 
-        if (sp >= stack.length) throw new RuntimeException("Stack Overflow");
+        if (sp >= stack.length) growStack(sp + 1);
+        if (value instanceof Double) { numbers[sp] = (Double) value; value = NUMBER; }
         stack[sp++] = value; 
     }
+    private void pushNumber(double value) {
+        if (sp >= stack.length) growStack(sp + 1);
+        numbers[sp] = value;
+        stack[sp++] = NUMBER;
+    }
     public Object pop() {
         if (sp <= 0) throw new RuntimeException("Stack Underflow");
-        return stack[--sp];
+        return slot(--sp);
+    }
+    private double popNumber() {
+        if (sp <= 0) throw new RuntimeException("Stack Underflow");
+        Object value = stack[--sp];
+        return value == NUMBER ? numbers[sp] : toDouble(value);
+    }
+    public Object peek() { if (sp <= 0) return null; return slot(sp - 1); }
+    private Object slot(int index) {
+        Object value = stack[index];
+        return value == NUMBER ? (Object) numbers[index] : value;
+    }
+    private void copySlot(int from, int to) {
+        stack[to] = stack[from];
+        numbers[to] = numbers[from];
+    }
+
+    private void run() { run(frameCount); }
+
+    // Runs until the frame active on entry returns. Exception tables are only
+    // consulted once an error is actually thrown, so the normal path does no
+    // handler bookkeeping.
+    private void run(int baseFrame) {
+        try {
+            for (;;) {
+                try {
+                    execute(baseFrame);
+                    return;
+                } catch (Exception e) {
+                    if (!handleError(e, baseFrame)) throw e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+                }
+            }
+        } finally {
+            if (Metrics.ENABLED) flushMetrics();
+        }
     }
-    public Object peek() { if (sp <= 0) return null; return stack[sp - 1]; }
 
-    private void run() {
-        while (ip < chunk.code.size()) {
+    private void execute(int baseFrame) throws IOException {
+        while (ip < chunk.count) {
+            if (Profiler.ENABLED && profileTick != Profiler.tick) sample();
+            if (Metrics.ENABLED && --metricsBudget == 0) flushMetrics();
             int instruction = readByte();
-            try {
-                switch (instruction) {
-                    case Op.RETURN:
-                        Object retVal = pop();
-                        if (frames.isEmpty()) return;
-                        Frame frame = frames.pop();
-                        if (frame.returnOverride != null) retVal = frame.returnOverride;
-
-                        this.sp = this.fp - 1; // discard callee slot
-                        this.chunk = frame.chunk;
-                        this.ip = frame.ip;
-                        this.fp = frame.fp;
-                        this.currentCatchAddress = frame.catchAddress;
-
-                        push(retVal);
-                        break;
-                        
-                    case Op.CONSTANT: push(chunk.constants.get(readByte())); break;
-                    case Op.PRINT: System.out.println(pop()); break;
-                    case Op.POP: pop(); break; 
-                    
-                    case Op.GET_LOCAL: {
-                        int slot = readByte();
-                        push(stack[fp + slot]);
-                        break;
-                    }
-                    case Op.SET_LOCAL: {
-                        int slot = readByte();
-                        stack[fp + slot] = peek();
-                        break;
-                    }
-                    
-                    case Op.SET_GLOBAL: {
-                        String name = (String) chunk.constants.get(readByte());
-                        globals.put(name, peek());
-                        break;
-                    }
-                    case Op.GET_GLOBAL: {
-                        String name = (String) chunk.constants.get(readByte());
-                        if (globals.containsKey(name)) push(globals.get(name));
-                        else throw new RuntimeException("Undefined global '" + name + "'");
-                        break;
-                    }
-                    
-                    case Op.CLASS: {
-                        String name = (String) chunk.constants.get(readByte());
-                        JihllClass klass = new JihllClass(name);
-                        globals.put(name, klass);
-                        push(klass);
-                        break;
-                    }
-                    case Op.METHOD: {
-                        String name = (String) chunk.constants.get(readByte());
-                        JihllFunction method = (JihllFunction) pop();
-                        JihllClass klass = (JihllClass) peek();
-                        klass.methods.put(name, method);
-                        break;
-                    }
-                    case Op.GET_PROPERTY: {
-                        String name = (String) chunk.constants.get(readByte());
-                        Object obj = pop();
-                        if (obj instanceof JihllInstance) {
-                            JihllInstance inst = (JihllInstance) obj;
-                            if (inst.fields.containsKey(name)) {
-                                push(inst.fields.get(name));
-                            } else {
-                                JihllFunction method = inst.klass.findMethod(name);
-                                if (method == null) throw new RuntimeException("Undefined property '" + name + "'.");
-                                push(new JihllBoundMethod(inst, method));
-                            }
-                        } else { throw new RuntimeException("Only instances have properties."); }
-                        break;
-                    }
-                    case Op.SET_PROPERTY: {
-                        String name = (String) chunk.constants.get(readByte());
-                        Object val = pop();
-                        Object obj = pop();
-                        if (obj instanceof JihllInstance) {
-                            ((JihllInstance)obj).fields.put(name, val);
-                            push(val);
-                        } else { throw new RuntimeException("Only instances have fields."); }
-                        break;
-                    }
-                    
-                    case Op.TRY_ENTER: currentCatchAddress = ip + readByte(); break;
-                    case Op.TRY_EXIT: currentCatchAddress = null; break;
-
-                    case Op.ADD: { Object b = pop(); Object a = pop(); if(a instanceof String || b instanceof String) push(""+a+b); else push(toDouble(a)+toDouble(b)); break; }
-                    case Op.SUBTRACT: push(toDouble(pop(), pop(), (a, b) -> a - b)); break;
-                    case Op.MULTIPLY: push(toDouble(pop(), pop(), (a, b) -> a * b)); break;
-                    case Op.DIVIDE: push(toDouble(pop(), pop(), (a, b) -> a / b)); break;
-                    case Op.LESS: push(toDouble(pop(), pop(), (a, b) -> (a < b) ? 1.0 : 0.0)); break;
-                    case Op.GREATER: push(toDouble(pop(), pop(), (a, b) -> (a > b) ? 1.0 : 0.0)); break;
-                    case Op.EQUAL: push(Objects.equals(pop(), pop())); break;
-                    case Op.LESS_EQUAL: push(toDouble(pop(), pop(), (a, b) -> (a <= b) ? 1.0 : 0.0)); break;
-                    case Op.GREATER_EQUAL: push(toDouble(pop(), pop(), (a, b) -> (a >= b) ? 1.0 : 0.0)); break;
-                    case Op.NOT_EQUAL: push(!Objects.equals(pop(), pop())); break;
-                    case Op.JUMP_IF_FALSE: { int offset = readByte(); if (isFalsey(pop())) ip += offset; break; }
-                    case Op.JUMP: { int offset = readByte(); ip += offset; break; }
-                    
-                    case Op.BUILD_LIST: { int c = readByte(); List<Object> l = new ArrayList<>(); for(int i=0;i<c;i++) l.add(null); for(int i=c-1;i>=0;i--) l.set(i, pop()); push(l); break; }
-                    case Op.BUILD_MAP: { int c = readByte(); Map<Object,Object> m = new HashMap<>(); for(int i=0;i<c;i++) { Object v=pop(); Object k=pop(); m.put(k,v); } push(m); break; }
+            switch (instruction) {
+                case Op.RETURN:
+                    if (sp <= 0) throw new RuntimeException("Stack Underflow");
+                    if (frameCount == baseFrame) { sp--; return; }
+                    int frame = --frameCount;
+                    if (frameOverrides[frame] != null) { stack[sp - 1] = frameOverrides[frame]; frameOverrides[frame] = null; }
+
+                    int returnSlot = frameReturnSlots[frame];
+                    copySlot(sp - 1, returnSlot); // result replaces callee/receiver slot
+                    this.sp = returnSlot + 1;
+                    this.chunk = frameChunks[frame];
+                    this.ip = frameIps[frame];
+                    this.fp = frameFps[frame];
+                    function = frameFunctions[frame];
+                    break;
                     
-                    case Op.IMPORT: {
-                        String filename = pop().toString();
-                        String source = Files.readString(Paths.get(filename));
-                        Lexer l = new Lexer(source);
-                        Parser p = new Parser(l.scanTokens());
-                        Chunk mc = new Chunk();
-                        new Compiler(mc).compile(p.parse());
-                        Chunk pc = this.chunk; int pip = this.ip; int pfp = this.fp;
-                        this.chunk = mc; this.ip = 0;
-                        run();
-                        this.chunk = pc; this.ip = pip; this.fp = pfp;
-                        break;
-                    }
+                case Op.CONSTANT: push(chunk.constants[readByte()]); break;
+                case Op.PRINT: System.out.println(pop()); break;
+                case Op.POP: pop(); break; 
+                
+                case Op.GET_LOCAL: {
+                    int slot = readByte();
+                    if (sp >= stack.length) growStack(sp + 1);
+                    copySlot(fp + slot, sp++);
+                    break;
+                }
+                case Op.SET_LOCAL: {
+                    int slot = readByte();
+                    copySlot(sp - 1, fp + slot);
+                    break;
+                }
+                
+                case Op.SET_GLOBAL: globals.set(readByte(), peek()); break;
+                case Op.GET_GLOBAL: push(globals.get(readByte())); break;
+                
+                case Op.CLASS: {
+                    String name = (String) chunk.constants[readByte()];
+                    push(new JihllClass(name));
+                    break;
+                }
+                case Op.METHOD: {
+                    String name = (String) chunk.constants[readByte()];
+                    JihllFunction method = (JihllFunction) pop();
+                    JihllClass klass = (JihllClass) peek();
+                    klass.methods.put(name, method);
+                    break;
+                }
+                case Op.GET_PROPERTY: {
+                    String name = (String) chunk.constants[readByte()];
+                    InlineCache cache = chunk.caches[readByte()];
+                    Object obj = pop();
+                    if (obj instanceof JihllInstance) {
+                        JihllInstance inst = (JihllInstance) obj;
+                        InlineCache.Entry entry = cache.lookup(inst.shape);
+                        if (entry == null) entry = resolveGet(cache, inst, name);
+                        if (entry.method == null) push(inst.fields[entry.slot]);
+                        else push(new JihllBoundMethod(inst, entry.method));
+                    } else { throw new RuntimeException("Only instances have properties."); }
+                    break;
+                }
+                case Op.SET_PROPERTY: {
+                    String name = (String) chunk.constants[readByte()];
+                    InlineCache cache = chunk.caches[readByte()];
+                    Object val = pop();
+                    Object obj = pop();
+                    if (obj instanceof JihllInstance) {
+                        JihllInstance inst = (JihllInstance) obj;
+                        InlineCache.Entry entry = cache.lookup(inst.shape);
+                        if (entry == null) entry = resolveSet(cache, inst, name);
+                        if (entry.transition == null) inst.fields[entry.slot] = val;
+                        else inst.addField(entry.transition, val);
+                        push(val);
+                    } else { throw new RuntimeException("Only instances have fields."); }
+                    break;
+                }
+                
+
+                case Op.ADD:
+                    if (sp >= 2 && stack[sp - 1] == NUMBER && stack[sp - 2] == NUMBER) quicken(ip - 1, Op.ADD_NUMBERS);
+                    else if (sp >= 2 && ConcatString.isString(stack[sp - 2])) quicken(ip - 1, Op.ADD_STRINGS);
+                    add();
+                    break;
+                case Op.ADD_NUMBERS:
+                    if (stack[sp - 1] != NUMBER || stack[sp - 2] != NUMBER) { dequicken(ip - 1, Op.ADD); break; }
+                    sp--;
+                    numbers[sp - 1] += numbers[sp];
+                    break;
+                case Op.ADD_STRINGS: {
+                    Object a = stack[sp - 2];
+                    if (!ConcatString.isString(a)) { dequicken(ip - 1, Op.ADD); break; }
+                    Object b = stack[sp - 1];
+                    stack[sp - 2] = b == NUMBER ? ConcatString.concat(a, numbers[sp - 1]) : ConcatString.concat(a, b);
+                    sp--;
+                    break;
+                }
+                case Op.SUBTRACT: { double b = popNumber(); pushNumber(popNumber() - b); break; }
+                case Op.MULTIPLY: { double b = popNumber(); pushNumber(popNumber() * b); break; }
+                case Op.DIVIDE: { double b = popNumber(); pushNumber(popNumber() / b); break; }
+                case Op.LESS: { double b = popNumber(); pushNumber(popNumber() < b ? 1.0 : 0.0); break; }
+                case Op.GREATER: { double b = popNumber(); pushNumber(popNumber() > b ? 1.0 : 0.0); break; }
+                case Op.EQUAL: push(popEqual()); break;
+                case Op.LESS_EQUAL: { double b = popNumber(); pushNumber(popNumber() <= b ? 1.0 : 0.0); break; }
+                case Op.GREATER_EQUAL: { double b = popNumber(); pushNumber(popNumber() >= b ? 1.0 : 0.0); break; }
+                case Op.NOT_EQUAL: push(!popEqual()); break;
+                case Op.JUMP_IF_FALSE: { int offset = readByte(); if (popFalsey()) ip += offset; break; }
+                case Op.JUMP: {
+                    int offset = readByte();
+                    ip += offset;
+                    if (offset < 0 && function != null && ++function.backEdges >= Tier2.BACK_EDGE_THRESHOLD) enterCompiledLoop();
+                    break;
+                }
+
+                case Op.ADD_LOCAL_CONSTANT: {
+                    int slot = fp + readByte();
+                    Object constant = chunk.constants[readByte()];
+                    if (stack[slot] == NUMBER && constant instanceof Double) { pushNumber(numbers[slot] + (Double) constant); break; }
+                    push(slot(slot)); push(constant); add();
+                    break;
+                }
+                case Op.SUBTRACT_LOCAL_CONSTANT: {
+                    int slot = fp + readByte();
+                    double b = toDouble(chunk.constants[readByte()]);
+                    pushNumber((stack[slot] == NUMBER ? numbers[slot] : toDouble(stack[slot])) - b);
+                    break;
+                }
+                case Op.SET_GLOBAL_POP: globals.set(readByte(), pop()); break;
+                case Op.SET_LOCAL_POP: { int slot = readByte(); copySlot(--sp, fp + slot); break; }
+                case Op.JUMP_IF_NOT_LESS: { int offset = readByte(); quickenNumbers(ip - 2, Op.JUMP_IF_NOT_LESS_NUMBERS); double b = popNumber(); if (!(popNumber() < b)) ip += offset; break; }
+                case Op.JUMP_IF_NOT_GREATER: { int offset = readByte(); quickenNumbers(ip - 2, Op.JUMP_IF_NOT_GREATER_NUMBERS); double b = popNumber(); if (!(popNumber() > b)) ip += offset; break; }
+                case Op.JUMP_IF_NOT_LESS_EQUAL: { int offset = readByte(); quickenNumbers(ip - 2, Op.JUMP_IF_NOT_LESS_EQUAL_NUMBERS); double b = popNumber(); if (!(popNumber() <= b)) ip += offset; break; }
+                case Op.JUMP_IF_NOT_GREATER_EQUAL: { int offset = readByte(); quickenNumbers(ip - 2, Op.JUMP_IF_NOT_GREATER_EQUAL_NUMBERS); double b = popNumber(); if (!(popNumber() >= b)) ip += offset; break; }
+                case Op.JUMP_IF_NOT_LESS_NUMBERS: {
+                    int offset = readByte();
+                    if (stack[sp - 1] != NUMBER || stack[sp - 2] != NUMBER) { dequicken(ip - 2, Op.JUMP_IF_NOT_LESS); break; }
+                    sp -= 2;
+                    if (!(numbers[sp] < numbers[sp + 1])) ip += offset;
+                    break;
+                }
+                case Op.JUMP_IF_NOT_GREATER_NUMBERS: {
+                    int offset = readByte();
+                    if (stack[sp - 1] != NUMBER || stack[sp - 2] != NUMBER) { dequicken(ip - 2, Op.JUMP_IF_NOT_GREATER); break; }
+                    sp -= 2;
+                    if (!(numbers[sp] > numbers[sp + 1])) ip += offset;
+                    break;
+                }
+                case Op.JUMP_IF_NOT_LESS_EQUAL_NUMBERS: {
+                    int offset = readByte();
+                    if (stack[sp - 1] != NUMBER || stack[sp - 2] != NUMBER) { dequicken(ip - 2, Op.JUMP_IF_NOT_LESS_EQUAL); break; }
+                    sp -= 2;
+                    if (!(numbers[sp] <= numbers[sp + 1])) ip += offset;
+                    break;
+                }
+                case Op.JUMP_IF_NOT_GREATER_EQUAL_NUMBERS: {
+                    int offset = readByte();
+                    if (stack[sp - 1] != NUMBER || stack[sp - 2] != NUMBER) { dequicken(ip - 2, Op.JUMP_IF_NOT_GREATER_EQUAL); break; }
+                    sp -= 2;
+                    if (!(numbers[sp] >= numbers[sp + 1])) ip += offset;
+                    break;
+                }
+                case Op.JUMP_IF_NOT_EQUAL: { int offset = readByte(); if (!popEqual()) ip += offset; break; }
+                case Op.JUMP_IF_EQUAL: { int offset = readByte(); if (popEqual()) ip += offset; break; }
+                
+                case Op.BUILD_LIST: { int c = readByte(); List<Object> l = new ArrayList<>(); for(int i=0;i<c;i++) l.add(null); for(int i=c-1;i>=0;i--) l.set(i, ConcatString.flatten(pop())); push(l); break; }
+                case Op.BUILD_MAP: { int c = readByte(); Map<Object,Object> m = new HashMap<>(); for(int i=0;i<c;i++) { Object v=ConcatString.flatten(pop()); Object k=ConcatString.flatten(pop()); m.put(k,v); } push(m); break; }
+                
+                case Op.IMPORT: {
+                    Path path = Modules.resolve(pop().toString());
+                    Chunk mc = (Chunk) globals.modules.enter(path, globals);
+                    if (mc == null) break;
+                    if (Metrics.ENABLED) Metrics.modulesImported.increment();
+                    // The module's top level gets its own frame base above the importer's stack.
+                    Chunk pc = this.chunk; int pip = this.ip; int pfp = this.fp; JihllFunction pfn = this.function;
+                    this.chunk = mc; this.ip = 0; this.fp = sp; this.function = null;
+                    boolean completed = false;
+                    try { run(frameCount); completed = true; }
+                    finally { this.chunk = pc; this.ip = pip; this.fp = pfp; this.function = pfn; globals.modules.exit(path, completed); }
+                    break;
+                }
 
-                    case Op.SPAWN: {
-                        int argCount = readByte(); Object[] args = new Object[argCount];
-                        for(int i=argCount-1;i>=0;i--) args[i]=pop();
-                        Object callee = pop();
-                        new Thread(() -> {
-                            VM threadVM = new VM(); threadVM.chunk = this.chunk; threadVM.globals.putAll(this.globals);
-                            if(callee instanceof NativeMethod) ((NativeMethod)callee).invoke(args);
-                            else if(callee instanceof JihllFunction) {
-                                JihllFunction fn=(JihllFunction)callee;
-                                threadVM.chunk = fn.chunk; 
-                                for(Object arg:args) threadVM.push(arg); 
-                                threadVM.ip=fn.address;
-                                try { threadVM.run(); } catch(Exception e) { System.err.println("Thread Error: "+e); }
-                            }
-                        }).start();
-                        push(null); break;
+                case Op.SPAWN: {
+                    int argCount = readByte(); Object[] args = new Object[argCount];
+                    for(int i=argCount-1;i>=0;i--) args[i]=pop();
+                    Object callee = pop();
+                    JihllTask task = new JihllTask();
+                    Globals taskGlobals = globals.copy();
+                    Scheduler.submit(() -> {
+                        try { task.complete(new VM(taskGlobals).call(callee, args)); }
+                        catch (RuntimeException e) { task.fail(e); }
+                    });
+                    push(task); break;
+                }
+                
+                case Op.CALL: {
+                    int argCount = readByte();
+                    if (stack[sp - 1 - argCount] instanceof NativeMethod) quicken(ip - 2, Op.CALL_NATIVE);
+                    callValue(argCount);
+                    break;
+                }
+                case Op.CALL_NATIVE: {
+                    int argCount = readByte();
+                    Object callee = stack[sp - 1 - argCount];
+                    if (!(callee instanceof NativeMethod)) { dequicken(ip - 2, Op.CALL); break; }
+                    callNative((NativeMethod) callee, argCount);
+                    break;
+                }
+                case Op.INVOKE: {
+                    String name = (String) chunk.constants[readByte()];
+                    int argCount = readByte();
+                    InlineCache cache = chunk.caches[readByte()];
+                    int base = sp - 1 - argCount;
+                    if (!(stack[base] instanceof JihllInstance)) throw new RuntimeException("Only instances have properties.");
+                    JihllInstance inst = (JihllInstance) stack[base];
+                    InlineCache.Entry entry = cache.lookup(inst.shape);
+                    if (entry == null) entry = resolveGet(cache, inst, name);
+                    if (entry.method != null) {
+                        // The receiver is already where slot 0 ('this') belongs.
+                        enterFunction(entry.method, base, base, null);
+                    } else {
+                        setSlot(base, inst.fields[entry.slot]);
+                        callValue(argCount);
                     }
-                    
-                    case Op.CALL:
-                        int argCount = readByte();
-                        Object callee = stack[sp - 1 - argCount];
-
-                        if (callee instanceof JihllBoundMethod) {
-                            JihllBoundMethod bound = (JihllBoundMethod) callee;
-                            argCount = bindReceiver(argCount, bound.receiver, bound.method);
-                            callee = bound.method;
-                        }
-                        
-                        if (callee instanceof NativeMethod) {
-                            Object[] args = new Object[argCount];
-                            for(int i=argCount-1;i>=0;i--) args[i]=pop();
-                            pop();
-                            push(((NativeMethod)callee).invoke(args));
-                        }
-                        else if (callee instanceof JihllClass) {
-                            JihllClass klass = (JihllClass) callee;
-                            JihllInstance instance = new JihllInstance(klass);
-                            JihllFunction init = klass.findMethod("init");
-                            if (init == null) {
-                                for(int i=0;i<argCount;i++) pop();
-                                pop();
-                                push(instance);
-                            } else {
-                                argCount = bindReceiver(argCount, instance, init);
-                                frames.push(new Frame(this.chunk, this.ip, this.fp, this.currentCatchAddress, instance));
-                                this.fp = sp - argCount;
-                                this.chunk = init.chunk;
-                                this.ip = init.address;
-                            }
-                        }
-                        else if (callee instanceof JihllFunction) {
-                            JihllFunction fn = (JihllFunction)callee;
-
-                            frames.push(new Frame(this.chunk, this.ip, this.fp, this.currentCatchAddress, null));
-                            this.fp = sp - argCount;
-                            this.chunk = fn.chunk;
-                            this.ip = fn.address;
-                        }
-                        break;
-                }
-            } catch (Exception e) {
-                if (currentCatchAddress != null) {
-                    push(e.getMessage()); ip = currentCatchAddress; currentCatchAddress = null;
-                } else throw new RuntimeException(e);
+                    break;
+                }
             }
         }
     }
 
-    private int readByte() { return chunk.code.get(ip++); }
+    // Finds the innermost handler covering the failing instruction, unwinding
+    // frames down to baseFrame. On success the stack is cut back to the
+    // handler's depth and the error message becomes the catch variable.
+    private boolean handleError(Exception e, int baseFrame) {
+        for (;;) {
+            Chunk.Handler handler = chunk.findHandler(ip - 1);
+            if (handler != null) {
+                if (Metrics.ENABLED) Metrics.exceptionsCaught.increment();
+                sp = fp + handler.depth;
+                push(e.getMessage());
+                ip = handler.target;
+                return true;
+            }
+            if (frameCount == baseFrame) return false;
+            int frame = --frameCount;
+            frameOverrides[frame] = null;
+            this.chunk = frameChunks[frame];
+            this.ip = frameIps[frame];
+            this.fp = frameFps[frame];
+            function = frameFunctions[frame];
+        }
+    }
+
+    private int readByte() { return chunk.code[ip++]; }
+
+    // Adds what this VM has counted since the last flush to the shared counters.
+    private void flushMetrics() {
+        Metrics.instructions.add(Metrics.BATCH - metricsBudget);
+        metricsBudget = Metrics.BATCH;
+        Metrics.calls.add(pendingCalls);
+        pendingCalls = 0;
+        Metrics.maxFrameDepth.accumulate(frameHighWater);
+    }
+
+    // A profiler tick has passed: record the instruction about to run and the
+    // functions on the call stack, outermost first.
+    private void sample() {
+        profileTick = Profiler.tick;
+        String[] frames = new String[frameCount + 1];
+        for (int i = 0; i < frameCount; i++) frames[i] = Profiler.frameName(frameFunctions[i], frameChunks[i]);
+        frames[frameCount] = Profiler.frameName(function, chunk);
+        Profiler.record(frames, chunk, ip);
+    }
+
+    // Rewrites the instruction at pc to a quickened form, unless the site has
+    // already fallen back too often.
+    private void quicken(int pc, int op) {
+        if (!quickening) return;
+        byte[] misses = chunk.dequickens;
+        if (misses == null || misses[pc] < QUICKEN_LIMIT) chunk.code[pc] = op;
+    }
+
+    private void quickenNumbers(int pc, int op) {
+        if (stack[sp - 1] == NUMBER && stack[sp - 2] == NUMBER) quicken(pc, op);
+    }
+
+    // A quickened guard failed: restore the generic form and run it instead.
+    // Losing a count to a racing thread only delays the site going generic.
+    private void dequicken(int pc, int generic) {
+        chunk.code[pc] = generic;
+        byte[] misses = chunk.dequickens;
+        if (misses == null) chunk.dequickens = misses = new byte[chunk.code.length];
+        if (misses[pc] < QUICKEN_LIMIT) misses[pc]++;
+        ip = pc;
+    }
     private double toDouble(Object a) {
         if(a instanceof Double)return(Double)a; if(a instanceof Integer)return((Integer)a).doubleValue(); throw new RuntimeException("Expected number");
     }
-    private Object toDouble(Object b, Object a, java.util.function.DoubleBinaryOperator op) { return op.applyAsDouble(toDouble(a), toDouble(b)); }
+    private void add() {
+        if (sp >= 2 && stack[sp - 1] == NUMBER && stack[sp - 2] == NUMBER) { sp--; numbers[sp - 1] += numbers[sp]; return; }
+        if (sp >= 2 && stack[sp - 1] == NUMBER && ConcatString.isString(stack[sp - 2])) {
+            sp--;
+            stack[sp - 1] = ConcatString.concat(stack[sp - 1], numbers[sp]);
+            return;
+        }
+        Object b = pop(); Object a = pop(); if(ConcatString.isString(a) || ConcatString.isString(b)) push(ConcatString.concat(a, b)); else pushNumber(toDouble(a)+toDouble(b));
+    }
     private boolean isFalsey(Object o) { return o==null || (o instanceof Boolean && !(Boolean)o) || (o instanceof Double && (Double)o==0.0); }
+    private boolean popFalsey() {
+        if (sp <= 0) throw new RuntimeException("Stack Underflow");
+        Object value = stack[--sp];
+        return value == NUMBER ? numbers[sp] == 0.0 : isFalsey(value);
+    }
+    // Same result as Objects.equals on the boxed values, without boxing two numbers.
+    private boolean popEqual() {
+        if (sp >= 2 && stack[sp - 1] == NUMBER && stack[sp - 2] == NUMBER) {
+            sp -= 2;
+            return Double.doubleToLongBits(numbers[sp]) == Double.doubleToLongBits(numbers[sp + 1]);
+        }
+        return ConcatString.equal(pop(), pop());
+    }
+
+    // Inline cache misses: resolve by name against the shape, then remember the result.
+    static InlineCache.Entry resolveGet(InlineCache cache, JihllInstance inst, String name) {
+        int slot = inst.shape.indexOf(name);
+        if (slot >= 0) return cache.add(new InlineCache.Entry(inst.shape, slot, null, null));
+        JihllFunction method = inst.klass.findMethod(name);
+        if (method == null) throw new RuntimeException("Undefined property '" + name + "'.");
+        return cache.add(new InlineCache.Entry(inst.shape, -1, method, null));
+    }
+
+    static InlineCache.Entry resolveSet(InlineCache cache, JihllInstance inst, String name) {
+        int slot = inst.shape.indexOf(name);
+        if (slot >= 0) return cache.add(new InlineCache.Entry(inst.shape, slot, null, null));
+        return cache.add(new InlineCache.Entry(inst.shape, inst.shape.size, null, inst.shape.with(name)));
+    }
+
+    // Calls a script value from outside the run loop and returns its result.
+    Object call(Object callee, Object[] args) {
+        int frames = frameCount;
+        push(callee);
+        for (Object arg : args) push(arg);
+        callValue(args.length);
+        if (frameCount == frames) return pop(); // native, or a class without init
+        run(frameCount); // leaves the result just above sp, with the frame still in place
+        int frame = --frameCount;
+        Object result = frameOverrides[frame] != null ? frameOverrides[frame] : slot(sp);
+        frameOverrides[frame] = null;
+        this.sp = frameReturnSlots[frame];
+        this.chunk = frameChunks[frame];
+        this.ip = frameIps[frame];
+        this.fp = frameFps[frame];
+        function = frameFunctions[frame];
+        return result;
+    }
+
+    private void callValue(int argCount) {
+        int base = sp - 1 - argCount;
+        Object callee = stack[base];
+        if (callee instanceof JihllFunction) {
+            JihllFunction fn = (JihllFunction) callee;
+            if ((fn.tier2 != null || ++fn.calls >= Tier2.CALL_THRESHOLD) && callCompiled(fn, base, argCount)) return;
+            enterFunction(fn, base + 1, base, null);
+        } else if (callee instanceof JihllBoundMethod) {
+            JihllBoundMethod bound = (JihllBoundMethod) callee;
+            stack[base] = bound.receiver;
+            enterFunction(bound.method, base, base, null);
+        } else if (callee instanceof JihllClass) {
+            JihllClass klass = (JihllClass) callee;
+            JihllInstance instance = new JihllInstance(klass);
+            stack[base] = instance;
+            JihllFunction init = klass.findMethod("init");
+            if (init == null) sp = base + 1;
+            else enterFunction(init, base, base, instance);
+        } else if (callee instanceof NativeMethod) {
+            callNative((NativeMethod) callee, argCount);
+        } else {
+            throw new RuntimeException("Can only call functions and classes.");
+        }
+    }
+
+    private void callNative(NativeMethod callee, int argCount) {
+        Object[] args = new Object[argCount];
+        for (int i = argCount - 1; i >= 0; i--) args[i] = ConcatString.flatten(pop());
+        pop();
+        push(callee.invoke(args));
+    }
 
-    private int bindReceiver(int argCount, Object receiver, Object newCallee) {
-        int calleeIndex = sp - 1 - argCount;
-        stack[calleeIndex] = newCallee;
-        if (sp >= stack.length) throw new RuntimeException("Stack Overflow");
-        for (int i = sp - 1; i >= calleeIndex + 1; i--) {
-            stack[i + 1] = stack[i];
+    // Slot 'fp' holds the first local ('this' for methods). The result is
+    // written to 'returnSlot', which is fp for methods and fp - 1 otherwise.
+    // Runs a call in tier 2 if the function compiles and the arguments fit the
+    // code's speculation. False means nothing happened and the caller should
+    // interpret the call instead.
+    private boolean callCompiled(JihllFunction fn, int base, int argCount) {
+        Tier2.Code code = Tier2.compile(fn, globals);
+        if (code == null) { fn.calls = Integer.MIN_VALUE; return false; }
+        if (argCount != fn.arity || !code.guard(globals)) return false;
+        for (int i = base + 1; i < sp; i++) if (stack[i] != NUMBER) return false;
+        double result;
+        try {
+            result = code.call(numbers, base + 1);
+        } catch (Tier2.Deopt | StackOverflowError e) {
+            if (!code.deoptimized()) Tier2.discard(fn);
+            return false;
         }
-        stack[calleeIndex + 1] = receiver;
-        sp++;
-        return argCount + 1;
+        numbers[base] = result;
+        stack[base] = NUMBER;
+        sp = base + 1;
+        if (Metrics.ENABLED) pendingCalls++;
+        return true;
+    }
+
+    // A loop just jumped back to ip often enough to be worth running in tier 2
+    // (on-stack replacement). Only plain function frames qualify: their
+    // locals start at fp and the return slot sits just below. On success the
+    // result is pushed and ip moved to a RETURN, which finishes the call.
+    private void enterCompiledLoop() {
+        JihllFunction fn = function;
+        fn.backEdges = 0;
+        if (!Tier2.enabled || frameCount == 0 || frameReturnSlots[frameCount - 1] != fp - 1) return;
+        if (fn.chunk != chunk || sp != fp + fn.arity) return;
+        Tier2.Code code = Tier2.compile(fn, globals);
+        if (code == null || !code.accepts(ip) || !code.guard(globals)) return;
+        for (int i = fp; i < sp; i++) if (stack[i] != NUMBER) return;
+        double result;
+        try {
+            result = code.osr(numbers, fp, ip);
+        } catch (Tier2.Deopt | StackOverflowError e) {
+            if (!code.deoptimized()) Tier2.discard(fn);
+            return;
+        }
+        pushNumber(result);
+        ip = code.returnPc;
+    }
+
+    private void enterFunction(JihllFunction fn, int fp, int returnSlot, Object returnOverride) {
+        if (frameCount == frameChunks.length) growFrames();
+        int frame = frameCount++;
+        frameChunks[frame] = this.chunk;
+        frameIps[frame] = this.ip;
+        frameFps[frame] = this.fp;
+        frameReturnSlots[frame] = returnSlot;
+        frameOverrides[frame] = returnOverride;
+        if (Metrics.ENABLED) {
+            pendingCalls++;
+            if (frameCount > frameHighWater) frameHighWater = frameCount;
+        }
+        frameFunctions[frame] = function;
+        function = fn;
+        if (Profiler.ENABLED) Profiler.enter(fn);
+        this.fp = fp;
+        this.chunk = fn.chunk;
+        this.ip = fn.address;
+    }
+
+    private void growStack(int needed) {
+        if (needed > MAX_STACK) throw new RuntimeException("Stack Overflow");
+        int size = (int) Math.min(MAX_STACK, Math.max(needed, 2L * stack.length));
+        stack = Arrays.copyOf(stack, size);
+        numbers = Arrays.copyOf(numbers, size);
+    }
+
+    private void growFrames() {
+        int size = frameChunks.length * 2;
+        frameChunks = Arrays.copyOf(frameChunks, size);
+        frameIps = Arrays.copyOf(frameIps, size);
+        frameFps = Arrays.copyOf(frameFps, size);
+        frameReturnSlots = Arrays.copyOf(frameReturnSlots, size);
+        frameOverrides = Arrays.copyOf(frameOverrides, size);
+        frameFunctions = Arrays.copyOf(frameFunctions, size);
+    }
+
+    private void setSlot(int index, Object value) {
+        if (value instanceof Double) { numbers[index] = (Double) value; value = NUMBER; }
+        stack[index] = value;
     }
 }
\ No newline at end of file